@@ -0,0 +1,61 @@
+package org.zakaria;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of one chat line to every connected client, as the servers' {@code broadcast()} does it:
+ * encode once, then offer the same bytes to each recipient's outbound queue.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "100000"})
+    int clients;
+
+    @Param({"TEXT", "BINARY"})
+    String protocol;
+
+    private final CopyOnWriteArrayList<ClientConnection> connections = new CopyOnWriteArrayList<>();
+    private ClientConnection sender;
+    private long sequence;
+
+    @Setup
+    public void setUp() {
+        WireProtocol wireProtocol = WireProtocol.valueOf(protocol);
+        for (int i = 0; i < clients; i++) {
+            ClientConnection connection = new InMemoryConnection("client-" + i);
+            connection.setProtocol(wireProtocol);
+            connections.add(connection);
+        }
+        sender = connections.get(0);
+    }
+
+    @Benchmark
+    public Message broadcast() {
+        // A fresh message each time, so its encoding is never cached across operations
+        Message frame = Message.text("[user0]: message number " + sequence++);
+        for (ClientConnection connection : connections) {
+            if (connection != sender) {
+                connection.send(frame);
+            }
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,52 @@
+package org.zakaria;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ServerCalculator's {@code EVAL:}, both straight through the script engine and along the
+ * handler's path, where plain arithmetic is answered natively.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class EvalBenchmark {
+    @Param({"5 * (3 + 2)", "Math.sqrt(2) * 10 / 3", "var x = 0; for (var i = 0; i < 100; i++) x += i; x"})
+    String expression;
+
+    private final ScriptEnginePool engines = new ScriptEnginePool(1, 1024);
+    private final ArithmeticExpression.Cache arithmetic = new ArithmeticExpression.Cache(1024);
+    private ScriptEnginePool.Session session;
+
+    @Setup
+    public void setUp() {
+        engines.warmUp();
+        session = engines.openSession();
+    }
+
+    @Benchmark
+    public Object scriptEngine() throws ScriptException {
+        return session.eval(expression);
+    }
+
+    @Benchmark
+    public String handler() throws ScriptException {
+        ArithmeticExpression compiled = arithmetic.get(expression);
+        return compiled != null ? compiled.evaluateToString() : String.valueOf(session.eval(expression));
+    }
+}
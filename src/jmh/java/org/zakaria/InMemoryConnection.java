@@ -0,0 +1,45 @@
+package org.zakaria;
+
+/**
+ * A connection with a real {@link OutboundQueue} but no socket, for benchmarking the send path.
+ * Its writer keeps up: every message offered is taken off the queue again right away.
+ */
+final class InMemoryConnection implements ClientConnection {
+    private final OutboundQueue queue = new OutboundQueue();
+    private final String remoteAddress;
+
+    InMemoryConnection(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    @Override
+    public void send(Message message) {
+        queue.offer(message);
+        queue.poll();
+    }
+
+    @Override
+    public void setProtocol(WireProtocol protocol) {
+        queue.setProtocol(protocol);
+    }
+
+    @Override
+    public WireProtocol getProtocol() {
+        return queue.getProtocol();
+    }
+
+    @Override
+    public QueueStats getQueueStats() {
+        return queue.stats();
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+}
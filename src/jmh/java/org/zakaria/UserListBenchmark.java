@@ -0,0 +1,75 @@
+package org.zakaria;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the user list a joining client receives, and applying it on the client side.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class UserListBenchmark {
+    // Long enough for every join of the setup to land in the same delta
+    private static final long SETUP_WINDOW_MILLIS = 2000;
+
+    @Param({"10", "1000", "10000", "100000"})
+    int users;
+
+    private PresenceTracker tracker;
+    private PresenceView view;
+    private UserListModel model;
+    private String snapshot;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        // Joins only see the published list, which stays empty until the window closes,
+        // so setting up many users does not build a snapshot of the growing list per join
+        tracker = new PresenceTracker(SETUP_WINDOW_MILLIS);
+        for (int i = 0; i < users; i++) {
+            tracker.join(new InMemoryConnection("client-" + i), "user" + i);
+        }
+        while (listed(tracker.snapshot().getPayload()) < users) {
+            Thread.sleep(100);
+        }
+        snapshot = tracker.snapshot().getPayload();
+        model = new UserListModel();
+        view = new PresenceView(model, () -> {
+        });
+    }
+
+    /**
+     * The server side: {@code USER_SNAPSHOT} string building and encoding.
+     */
+    @Benchmark
+    public EncodedMessage buildSnapshot() {
+        return tracker.snapshot().encode(WireProtocol.TEXT);
+    }
+
+    /**
+     * The client side: parsing a snapshot into the sorted user list model.
+     */
+    @Benchmark
+    public int applySnapshot() {
+        view.applySnapshot(snapshot);
+        return model.getSize();
+    }
+
+    private static int listed(String payload) {
+        String names = payload.substring(payload.indexOf(':') + 1);
+        return names.isEmpty() ? 0 : names.split(",").length;
+    }
+}
@@ -0,0 +1,66 @@
+package org.zakaria;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code getUserByName}: a case-insensitive lookup in the {@link UserRegistry}, mixing hits in
+ * various cases with misses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class UserLookupBenchmark {
+    private static final int QUERIES = 1024;
+
+    @Param({"10", "1000", "100000"})
+    int users;
+
+    private final UserRegistry registry = new UserRegistry();
+    private final String[] queries = new String[QUERIES];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < users; i++) {
+            registry.add(new User("User" + i, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+        }
+        for (int i = 0; i < QUERIES; i++) {
+            int user = random.nextInt(users);
+            switch (i % 4) {
+                case 0:
+                    queries[i] = "User" + user;
+                    break;
+                case 1:
+                    queries[i] = "user" + user;
+                    break;
+                case 2:
+                    queries[i] = "USER" + user;
+                    break;
+                default:
+                    queries[i] = "nobody" + user;
+            }
+        }
+    }
+
+    @Benchmark
+    public User getUserByName() {
+        return registry.get(queries[next++ & (QUERIES - 1)]);
+    }
+}
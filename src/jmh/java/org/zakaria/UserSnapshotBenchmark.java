@@ -0,0 +1,70 @@
+package org.zakaria;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code saveUsersToJSON}: serialising every known user into a snapshot file, in either format.
+ * The file is rewritten each time but not forced to disk, so this measures serialisation rather
+ * than the storage device.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class UserSnapshotBenchmark {
+    @Param({"10", "1000", "100000"})
+    int users;
+
+    @Param({"JSON", "BINARY"})
+    String format;
+
+    private final List<User> known = new ArrayList<>();
+    private UserSnapshot snapshot;
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < users; i++) {
+            known.add(new User("user" + i, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180));
+        }
+        snapshot = UserSnapshot.valueOf(format);
+        file = Files.createTempFile("users", ".snapshot");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long save() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            snapshot.write(channel, 1, known);
+            return channel.size();
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package org.zakaria;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongSupplier;
+
+/**
+ * A plain arithmetic expression, compiled into a tree of closures over primitive values.
+ * <p>
+ * Understands the JavaScript subset that almost every {@code EVAL:} uses: numeric literals, the
+ * operators {@code + - * / %}, unary signs, parentheses, and the ES5 {@code Math} functions and constants.
+ * Anything else makes {@link #parse(String)} return {@code null}, so the caller can fall back to the
+ * script engine.
+ * <p>
+ * Results are formatted the way Nashorn's would be. Like Nashorn, integer-typed subexpressions are
+ * evaluated optimistically as {@code int}s; once one overflows, divides unevenly or yields {@code -0}
+ * the rest of that computation is redone in {@code double}s. So {@code 5 * (3 + 2)} prints {@code 25},
+ * while {@code 1 / 3 * 3} prints {@code 1.0} and {@code Math.sqrt(16)} prints {@code 4.0}.
+ */
+final class ArithmeticExpression {
+    // Result of an int evaluation that has to be redone in doubles
+    private static final long NOT_INT = Long.MIN_VALUE;
+    private static final int MAX_COMPLEXITY = 1000;
+
+    private final Term root;
+
+    private ArithmeticExpression(Term root) {
+        this.root = root;
+    }
+
+    /**
+     * Compiles an expression.
+     *
+     * @param source The expression text.
+     * @return The compiled expression, or {@code null} if the text is not plain arithmetic.
+     */
+    static ArithmeticExpression parse(String source) {
+        Parser parser = new Parser(source);
+        Term term = parser.expression();
+        if (term == null || !parser.atEnd()) {
+            return null;
+        }
+        return new ArithmeticExpression(term);
+    }
+
+    double evaluate() {
+        return root.value().getAsDouble();
+    }
+
+    /**
+     * Evaluates the expression and formats the value as the script engine would.
+     */
+    String evaluateToString() {
+        if (root.exact() != null) {
+            long exact = root.exact().getAsLong();
+            if (exact != NOT_INT) {
+                return Integer.toString((int) exact);
+            }
+        }
+        return Double.toString(root.value().getAsDouble());
+    }
+
+    /**
+     * An LRU of compiled expressions keyed by normalised text, shared by all clients. Text that is not
+     * plain arithmetic is remembered too, so it is only parsed once before going to the script engine.
+     */
+    static final class Cache {
+        private static final ArithmeticExpression NOT_ARITHMETIC = new ArithmeticExpression(null);
+
+        private final Map<String, ArithmeticExpression> compiled;
+
+        Cache(int size) {
+            this.compiled = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ArithmeticExpression> eldest) {
+                    return size() > size;
+                }
+            };
+        }
+
+        /**
+         * @param expression The expression text.
+         * @return The compiled expression, or {@code null} if it must be left to the script engine.
+         */
+        ArithmeticExpression get(String expression) {
+            String key = ScriptEnginePool.normalize(expression);
+            ArithmeticExpression parsed;
+            synchronized (compiled) {
+                parsed = compiled.get(key);
+            }
+            if (parsed == null) {
+                parsed = parse(key);
+                if (parsed == null) {
+                    parsed = NOT_ARITHMETIC;
+                }
+                synchronized (compiled) {
+                    compiled.put(key, parsed);
+                }
+            }
+            return parsed == NOT_ARITHMETIC ? null : parsed;
+        }
+    }
+
+    /**
+     * A compiled subexpression. {@code exact} is only present where JavaScript would type the
+     * subexpression as an {@code int}; it yields the value, or {@link #NOT_INT} if it is not one.
+     */
+    private record Term(DoubleSupplier value, LongSupplier exact) {
+    }
+
+    private static long checked(long value) {
+        return value == (int) value ? value : NOT_INT;
+    }
+
+    /**
+     * Recursive-descent parser. Every method returns {@code null} on input it does not understand.
+     */
+    private static final class Parser {
+        private final String source;
+        private int position;
+        // Operators and nested groups so far; past the limit the input goes to the script engine,
+        // which keeps an absurdly deep expression from overflowing a connection thread's stack
+        private int complexity;
+
+        Parser(String source) {
+            this.source = source;
+        }
+
+        boolean atEnd() {
+            skipWhitespace();
+            return position == source.length();
+        }
+
+        Term expression() {
+            Term left = multiplicative();
+            while (left != null) {
+                char operator = peekOperator('+', '-');
+                if (operator == 0) {
+                    return left;
+                }
+                Term right = multiplicative();
+                if (right == null) {
+                    return null;
+                }
+                left = tooComplex() ? null : binary(left, right, operator);
+            }
+            return null;
+        }
+
+        private Term multiplicative() {
+            Term left = unary();
+            while (left != null) {
+                char operator = peekOperator('*', '/', '%');
+                if (operator == 0) {
+                    return left;
+                }
+                Term right = unary();
+                if (right == null) {
+                    return null;
+                }
+                left = tooComplex() ? null : binary(left, right, operator);
+            }
+            return null;
+        }
+
+        private static Term binary(Term left, Term right, char operator) {
+            DoubleSupplier a = left.value();
+            DoubleSupplier b = right.value();
+            DoubleSupplier value;
+            switch (operator) {
+                case '+':
+                    value = () -> a.getAsDouble() + b.getAsDouble();
+                    break;
+                case '-':
+                    value = () -> a.getAsDouble() - b.getAsDouble();
+                    break;
+                case '*':
+                    value = () -> a.getAsDouble() * b.getAsDouble();
+                    break;
+                case '/':
+                    value = () -> a.getAsDouble() / b.getAsDouble();
+                    break;
+                case '%':
+                default:
+                    value = () -> a.getAsDouble() % b.getAsDouble();
+            }
+            if (left.exact() == null || right.exact() == null) {
+                return new Term(value, null);
+            }
+            LongBinaryOperator op;
+            switch (operator) {
+                case '+':
+                    op = (x, y) -> checked(x + y);
+                    break;
+                case '-':
+                    op = (x, y) -> checked(x - y);
+                    break;
+                case '*':
+                    op = (x, y) -> x * y == 0 && (x < 0 || y < 0) ? NOT_INT : checked(x * y);
+                    break;
+                case '/':
+                    op = (x, y) -> y == 0 || x % y != 0 || (x == 0 && y < 0) ? NOT_INT : checked(x / y);
+                    break;
+                case '%':
+                default:
+                    op = (x, y) -> y == 0 || (x % y == 0 && x < 0) ? NOT_INT : x % y;
+            }
+            LongSupplier ea = left.exact();
+            LongSupplier eb = right.exact();
+            return new Term(value, () -> {
+                long x = ea.getAsLong();
+                if (x == NOT_INT) return NOT_INT;
+                long y = eb.getAsLong();
+                if (y == NOT_INT) return NOT_INT;
+                return op.applyAsLong(x, y);
+            });
+        }
+
+        private Term unary() {
+            char sign = peekOperator('+', '-');
+            if (sign == 0) {
+                return primary();
+            }
+            Term operand = tooComplex() ? null : unary();
+            if (operand == null || sign == '+') {
+                return operand;
+            }
+            DoubleSupplier a = operand.value();
+            LongSupplier ea = operand.exact();
+            if (ea == null) {
+                return new Term(() -> -a.getAsDouble(), null);
+            }
+            return new Term(() -> -a.getAsDouble(), () -> {
+                long x = ea.getAsLong();
+                return x == NOT_INT || x == 0 ? NOT_INT : checked(-x);
+            });
+        }
+
+        private Term primary() {
+            skipWhitespace();
+            if (position == source.length()) {
+                return null;
+            }
+            char c = source.charAt(position);
+            if (c == '(') {
+                position++;
+                if (tooComplex()) {
+                    return null;
+                }
+                Term inner = expression();
+                return inner != null && consume(')') ? inner : null;
+            }
+            if (isDigit(c) || c == '.') {
+                return number();
+            }
+            if (source.startsWith("Math", position)) {
+                position += 4;
+                return consume('.') ? math() : null;
+            }
+            return null;
+        }
+
+        private Term number() {
+            int start = position;
+            if (source.startsWith("0x", position) || source.startsWith("0X", position)) {
+                position += 2;
+                while (position < source.length() && Character.digit(source.charAt(position), 16) >= 0) {
+                    position++;
+                }
+                if (position == start + 2 || position - start > 10 || isIdentifierPart()) {
+                    return null;
+                }
+                double value = Long.parseLong(source.substring(start + 2, position), 16);
+                return constant(value, value <= Integer.MAX_VALUE);
+            }
+            boolean fraction = false;
+            while (position < source.length()) {
+                char c = source.charAt(position);
+                if (c == '.' && !fraction) {
+                    fraction = true;
+                } else if (!isDigit(c)) {
+                    break;
+                }
+                position++;
+            }
+            String digits = source.substring(start, position);
+            if (digits.equals(".")) {
+                return null;
+            }
+            // Legacy octal literals such as 010 mean something else in JavaScript
+            if (digits.length() > 1 && digits.charAt(0) == '0' && isDigit(digits.charAt(1))) {
+                return null;
+            }
+            if (position < source.length() && (source.charAt(position) == 'e' || source.charAt(position) == 'E')) {
+                position++;
+                if (position < source.length() && (source.charAt(position) == '+' || source.charAt(position) == '-')) {
+                    position++;
+                }
+                int exponentStart = position;
+                while (position < source.length() && isDigit(source.charAt(position))) {
+                    position++;
+                }
+                if (position == exponentStart) {
+                    return null;
+                }
+            }
+            if (isIdentifierPart()) {
+                return null;
+            }
+            double value = Double.parseDouble(source.substring(start, position));
+            return constant(value, !fraction && value == (int) value);
+        }
+
+        private Term math() {
+            int start = position;
+            while (isIdentifierPart()) {
+                position++;
+            }
+            String name = source.substring(start, position);
+            switch (name) {
+                case "E": return constant(Math.E, false);
+                case "LN10": return constant(Math.log(10), false);
+                case "LN2": return constant(Math.log(2), false);
+                case "LOG10E": return constant(1 / Math.log(10), false);
+                case "LOG2E": return constant(1 / Math.log(2), false);
+                case "PI": return constant(Math.PI, false);
+                case "SQRT1_2": return constant(Math.sqrt(0.5), false);
+                case "SQRT2": return constant(Math.sqrt(2), false);
+                default: break;
+            }
+            List<Term> args = tooComplex() ? null : arguments();
+            if (args == null) {
+                return null;
+            }
+            switch (name) {
+                case "abs": return abs(args);
+                case "acos": return unaryFunction(args, Math::acos);
+                case "asin": return unaryFunction(args, Math::asin);
+                case "atan": return unaryFunction(args, Math::atan);
+                case "ceil": return unaryFunction(args, Math::ceil);
+                case "cos": return unaryFunction(args, Math::cos);
+                case "exp": return unaryFunction(args, Math::exp);
+                case "floor": return unaryFunction(args, Math::floor);
+                case "log": return unaryFunction(args, Math::log);
+                case "round": return unaryFunction(args, Parser::round);
+                case "sin": return unaryFunction(args, Math::sin);
+                case "sqrt": return unaryFunction(args, Math::sqrt);
+                case "tan": return unaryFunction(args, Math::tan);
+                case "atan2": return binaryFunction(args, Math::atan2);
+                case "pow": return binaryFunction(args, Math::pow);
+                case "max": return extremum(args, true);
+                case "min": return extremum(args, false);
+                default: return null;
+            }
+        }
+
+        private List<Term> arguments() {
+            if (!consume('(')) {
+                return null;
+            }
+            List<Term> args = new ArrayList<>(2);
+            if (consume(')')) {
+                return args;
+            }
+            do {
+                Term arg = expression();
+                if (arg == null) {
+                    return null;
+                }
+                args.add(arg);
+            } while (consume(','));
+            return consume(')') ? args : null;
+        }
+
+        private static Term unaryFunction(List<Term> args, DoubleUnaryOperator function) {
+            if (args.size() != 1) {
+                return null;
+            }
+            DoubleSupplier a = args.get(0).value();
+            return new Term(() -> function.applyAsDouble(a.getAsDouble()), null);
+        }
+
+        private static Term abs(List<Term> args) {
+            Term operand = unaryFunction(args, Math::abs);
+            LongSupplier ea = operand == null ? null : args.get(0).exact();
+            if (ea == null) {
+                return operand;
+            }
+            return new Term(operand.value(), () -> {
+                long x = ea.getAsLong();
+                return x == NOT_INT ? NOT_INT : checked(Math.abs(x));
+            });
+        }
+
+        private static Term binaryFunction(List<Term> args, DoubleBinaryOperator function) {
+            if (args.size() != 2) {
+                return null;
+            }
+            DoubleSupplier a = args.get(0).value();
+            DoubleSupplier b = args.get(1).value();
+            return new Term(() -> function.applyAsDouble(a.getAsDouble(), b.getAsDouble()), null);
+        }
+
+        private static Term extremum(List<Term> args, boolean max) {
+            if (args.isEmpty()) {
+                return null;
+            }
+            DoubleSupplier value = args.get(0).value();
+            for (int i = 1; i < args.size(); i++) {
+                DoubleSupplier a = value;
+                DoubleSupplier b = args.get(i).value();
+                value = max
+                        ? () -> Math.max(a.getAsDouble(), b.getAsDouble())
+                        : () -> Math.min(a.getAsDouble(), b.getAsDouble());
+            }
+            // Nashorn only keeps the two-argument form in ints
+            if (args.size() != 2 || args.get(0).exact() == null || args.get(1).exact() == null) {
+                return new Term(value, null);
+            }
+            LongSupplier ea = args.get(0).exact();
+            LongSupplier eb = args.get(1).exact();
+            return new Term(value, () -> {
+                long x = ea.getAsLong();
+                if (x == NOT_INT) return NOT_INT;
+                long y = eb.getAsLong();
+                if (y == NOT_INT) return NOT_INT;
+                return max ? Math.max(x, y) : Math.min(x, y);
+            });
+        }
+
+        // JavaScript rounds halves towards +Infinity, Java's Math.round returns a long
+        private static double round(double value) {
+            double floor = Math.floor(value);
+            return value - floor >= 0.5 ? floor + 1 : floor;
+        }
+
+        private static Term constant(double value, boolean integral) {
+            long exact = (long) value;
+            return new Term(() -> value, integral ? () -> exact : null);
+        }
+
+        /**
+         * Consumes the next operator if it is one of {@code operators}. Doubled operators such as
+         * {@code ++}, {@code --} and {@code **} are left to the script engine.
+         */
+        private char peekOperator(char... operators) {
+            skipWhitespace();
+            if (position == source.length()) {
+                return 0;
+            }
+            char c = source.charAt(position);
+            for (char operator : operators) {
+                if (c == operator) {
+                    if (position + 1 < source.length() && source.charAt(position + 1) == c) {
+                        return 0;
+                    }
+                    position++;
+                    return c;
+                }
+            }
+            return 0;
+        }
+
+        private boolean tooComplex() {
+            return ++complexity > MAX_COMPLEXITY;
+        }
+
+        private boolean consume(char expected) {
+            skipWhitespace();
+            if (position < source.length() && source.charAt(position) == expected) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position))) {
+                position++;
+            }
+        }
+
+        private boolean isIdentifierPart() {
+            return position < source.length() && Character.isJavaIdentifierPart(source.charAt(position));
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+    }
+}
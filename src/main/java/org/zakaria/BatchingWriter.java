@@ -0,0 +1,73 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drains an {@link OutboundQueue} into a blocking stream, coalescing everything queued
+ * (up to {@link TransportSettings#WRITE_BATCH_BYTES}) into a single write.
+ * <p>
+ * A message that finds the writer idle is written on its own straight away, without copying.
+ * Only while a burst is in progress, i.e. the previous write already carried several messages,
+ * does the writer linger briefly to let the batch fill up.
+ */
+class BatchingWriter {
+    private final OutboundQueue queue;
+    private final OutputStream out;
+    private final int batchBytes;
+    private final long lingerNanos;
+    private final List<EncodedMessage> batch = new ArrayList<>();
+    // Only allocated once this client actually sees a burst
+    private byte[] buffer;
+    private boolean bursting;
+
+    BatchingWriter(OutboundQueue queue, OutputStream out) {
+        this(queue, out, TransportSettings.WRITE_BATCH_BYTES, TransportSettings.WRITE_LINGER_NANOS);
+    }
+
+    BatchingWriter(OutboundQueue queue, OutputStream out, int batchBytes, long lingerNanos) {
+        this.queue = queue;
+        this.out = out;
+        this.batchBytes = batchBytes;
+        this.lingerNanos = lingerNanos;
+    }
+
+    /**
+     * Writes until the queue is closed and drained.
+     *
+     * @throws IOException          If writing fails.
+     * @throws InterruptedException If interrupted while waiting for messages.
+     */
+    void run() throws IOException, InterruptedException {
+        EncodedMessage first;
+        while ((first = queue.take()) != null) {
+            batch.add(first);
+            int bytes = first.length() + queue.drainTo(batch, batchBytes - first.length());
+            if (bursting && bytes < batchBytes && lingerNanos > 0 && queue.awaitMessages(lingerNanos)) {
+                bytes += queue.drainTo(batch, batchBytes - bytes);
+            }
+            bursting = batch.size() > 1;
+            write(bytes);
+            batch.clear();
+        }
+    }
+
+    private void write(int bytes) throws IOException {
+        Metrics.messagesOut.add(batch.size());
+        Metrics.bytesOut.add(bytes);
+        if (batch.size() == 1) {
+            batch.get(0).writeTo(out);
+            return;
+        }
+        if (buffer == null) {
+            buffer = new byte[batchBytes];
+        }
+        int position = 0;
+        for (EncodedMessage message : batch) {
+            position = message.copyTo(buffer, position);
+        }
+        out.write(buffer, 0, bytes);
+    }
+}
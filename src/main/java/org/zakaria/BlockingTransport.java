@@ -0,0 +1,277 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Blocking transport: one thread per connection blocked reading its socket.
+ * Whether those are platform or virtual threads is decided by the thread factory.
+ */
+public class BlockingTransport implements ChatTransport {
+    private static final int ACCEPT_BACKLOG = 1024;
+    // How long to wait before accepting again after accept() failed, e.g. for want of file descriptors
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+    private static final long SHUTDOWN_GRACE_SECONDS = 10;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final ThreadFactory threadFactory;
+    private final Set<SocketConnection> connections = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    /**
+     * @param threadFactory Creates the thread that services each connection.
+     */
+    public BlockingTransport(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    @Override
+    public void serve(int port, Function<ClientConnection, ConnectionHandler> factory) throws IOException {
+        // Closing the executor waits for every handler, so serve() only returns once all of them are done
+        try (ServerSocket serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
+             ExecutorService handlers = Executors.newThreadPerTaskExecutor(threadFactory)) {
+            this.serverSocket = serverSocket;
+            try {
+                // Continuously accept new client connections
+                while (!closed) {
+                    Socket clientSocket;
+                    try {
+                        clientSocket = serverSocket.accept();
+                    } catch (IOException e) {
+                        if (closed || serverSocket.isClosed()) throw e;
+                        // Running out of file descriptors or a client aborting mid-accept is not the server's end
+                        System.err.println("Error accepting connection: " + e.getMessage());
+                        try {
+                            Thread.sleep(ACCEPT_RETRY_MILLIS);
+                        } catch (InterruptedException interrupted) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                        continue;
+                    }
+                    // One client failing to set up, e.g. reset before its options were applied, is not the server's end
+                    SocketConnection connection;
+                    try {
+                        connection = new SocketConnection(clientSocket);
+                    } catch (IOException | RuntimeException e) {
+                        discard(clientSocket, e);
+                        continue;
+                    }
+                    Metrics.opened(connection);
+                    ConnectionHandler handler;
+                    try {
+                        handler = factory.apply(connection);
+                    } catch (RuntimeException e) {
+                        Metrics.closed(connection);
+                        discard(clientSocket, e);
+                        continue;
+                    }
+                    connections.add(connection);
+                    handlers.execute(connection::writeLoop);
+                    handlers.execute(() -> {
+                        try {
+                            connection.readLoop(handler);
+                        } finally {
+                            connections.remove(connection);
+                        }
+                    });
+                }
+            } catch (SocketException e) {
+                // close() shut the listening socket down; anything else is a real failure
+                if (!closed) throw e;
+            } finally {
+                // Unblock every handler still waiting for input
+                for (SocketConnection connection : connections) {
+                    connection.closeNow();
+                }
+            }
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * Logs why an accepted socket could not become a connection, and closes it.
+     */
+    private static void discard(Socket clientSocket, Exception e) {
+        System.err.println("Error setting up connection from " + clientSocket.getRemoteSocketAddress() + ": " + e.getMessage());
+        try {
+            clientSocket.close();
+        } catch (IOException ignored) {
+            // Ignore
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ServerSocket socket = serverSocket;
+        if (socket == null) return;
+        try {
+            socket.close();
+            if (!terminated.await(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("Timed out waiting for " + connections.size() + " client handlers to finish");
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A connection backed by a blocking {@link Socket}. A reader thread delivers lines to the
+     * handler while a writer thread drains the outbound queue, so sending never blocks the caller.
+     */
+    static class SocketConnection implements ClientConnection {
+        private final Socket clientSocket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final OutboundQueue queue = new OutboundQueue();
+        private volatile boolean closing;
+        // Only touched by the reader thread, including from handler callbacks
+        private InboundDecoder decoder = WireProtocol.TEXT.newDecoder();
+
+        SocketConnection(Socket socket) throws IOException {
+            this.clientSocket = socket;
+            TransportSettings.apply(socket);
+            // Initialize input and output streams
+            out = clientSocket.getOutputStream();
+            in = clientSocket.getInputStream();
+        }
+
+        @Override
+        public void send(Message message) {
+            if (!queue.offer(message)) {
+                System.err.println("Disconnecting slow client " + this + ": outbound queue full");
+                closeNow();
+            }
+        }
+
+        @Override
+        public QueueStats getQueueStats() {
+            return queue.stats();
+        }
+
+        @Override
+        public void setProtocol(WireProtocol protocol) {
+            queue.setProtocol(protocol);
+            decoder = protocol.newDecoder();
+        }
+
+        @Override
+        public WireProtocol getProtocol() {
+            return queue.getProtocol();
+        }
+
+        @Override
+        public void close() {
+            // The writer closes the socket once everything queued so far is written
+            closing = true;
+            queue.close();
+        }
+
+        /**
+         * Closes the socket right away, discarding any output still queued.
+         */
+        void closeNow() {
+            closing = true;
+            queue.clear();
+            try {
+                // Unblocks the reader thread, which then runs the handler's onClose()
+                if (!clientSocket.isClosed()) clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing " + this + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return String.valueOf(clientSocket.getRemoteSocketAddress());
+        }
+
+        /**
+         * Reads until the peer disconnects, handing every decoded message to the handler.
+         *
+         * @param handler The handler for this connection.
+         */
+        void readLoop(ConnectionHandler handler) {
+            try {
+                handler.onOpen();
+                byte[] bytes = new byte[READ_BUFFER_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                int read;
+                while (!clientSocket.isClosed() && (read = in.read(bytes)) >= 0) {
+                    buffer.position(0).limit(read);
+                    Metrics.bytesIn.add(read);
+                    // Re-read the decoder field each time: a handler may switch protocols mid-buffer
+                    while (!closing && buffer.hasRemaining() && decoder.decodeNext(buffer, handler)) {
+                        Metrics.messagesIn.increment();
+                    }
+                }
+            } catch (IOException e) {
+                if (!clientSocket.isClosed()) {
+                    System.err.println("Error in client communication: " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Error handling " + this + ": " + e);
+            } finally {
+                try {
+                    handler.onClose();
+                } finally {
+                    closeEverything();
+                }
+            }
+        }
+
+        /**
+         * Writes queued messages until the queue is closed and drained, then closes the socket.
+         */
+        void writeLoop() {
+            try {
+                new BatchingWriter(queue, out).run();
+            } catch (IOException e) {
+                // The peer went away; the reader thread reports it
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeNow();
+            }
+        }
+
+        /**
+         * Closes all resources associated with the client.
+         */
+        private void closeEverything() {
+            Metrics.closed(this);
+            queue.clear();
+            try {
+                out.close();
+                in.close();
+                if (!clientSocket.isClosed()) clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing resources for " + this + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return clientSocket.toString();
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of broadcast messages, kept in memory-mapped segment files.
+ * <p>
+ * Every message gets a sequential offset and is stored as {@code [length][timestamp][UTF-8 text]}
+ * in the segment named after the offset of its first message ({@code <offset>.log}). Each segment
+ * keeps a sparse in-memory index, one entry every {@value #INDEX_INTERVAL} messages, mapping offsets
+ * and timestamps to positions, so finding the last {@code n} messages or everything since a moment
+ * only scans a few records. The indexes are rebuilt by scanning the segments at startup.
+ * {@link #position()} marks a point in the log, to later ask for everything logged after it.
+ * <p>
+ * {@link #append(String)} only queues the message; a writer thread copies whole batches into the
+ * mapped segment, so logging adds no I/O to the broadcast path. If the writer falls more than
+ * {@code messenger.history.queue} messages behind (default 65536), further messages are not logged.
+ * Reads go straight to the mapped segments and only see messages the writer has published.
+ * <p>
+ * Old segments are deleted once the log exceeds {@code messenger.history.retentionMB} (default 1024)
+ * or their newest message is older than {@code messenger.history.retentionHours} (default 168).
+ * Segments are {@code messenger.history.segmentMB} (default 16) each and live in
+ * {@code messenger.history.dir} (default {@code history}).
+ */
+public class ChatHistory {
+    private static final int INDEX_INTERVAL = 64;
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    private static final int WRITE_BATCH = 256;
+    private static final long IDLE_POLL_MILLIS = 200;
+    private static final long RETENTION_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final BlockingQueue<Pending> queue;
+    // Base offset -> segment, oldest first; the last one is being written
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+    // The offset the next message will get; messages below it are readable
+    private volatile long nextOffset;
+    // The offset the next queued message will get, once the writer has caught up
+    private final AtomicLong appended = new AtomicLong();
+
+    public ChatHistory() {
+        this(Paths.get(System.getProperty("messenger.history.dir", "history")),
+                Integer.getInteger("messenger.history.segmentMB", 16) << 20,
+                Long.getLong("messenger.history.retentionMB", 1024) << 20,
+                TimeUnit.HOURS.toMillis(Long.getLong("messenger.history.retentionHours", 168)),
+                Integer.getInteger("messenger.history.queue", 65536));
+    }
+
+    /**
+     * @param directory       Where the segments live.
+     * @param segmentBytes    The size of each segment file.
+     * @param retentionBytes  How much the log may take on disk before old segments are deleted.
+     * @param retentionMillis How long messages are kept.
+     * @param queueCapacity   How many messages may wait for the writer.
+     */
+    ChatHistory(Path directory, int segmentBytes, long retentionBytes, long retentionMillis, int queueCapacity) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (IOException e) {
+            System.err.println("Error loading chat history: " + e.getMessage());
+        }
+        appended.set(nextOffset);
+        writer = Thread.ofPlatform().daemon().name("chat-history").start(this::writeLoop);
+    }
+
+    /**
+     * Queues a message to be logged, without waiting for it to be written.
+     *
+     * @param message The message text.
+     */
+    public void append(String message) {
+        if (closed || !queue.offer(new Pending(message, System.currentTimeMillis()))) {
+            dropped.incrementAndGet();
+        } else {
+            appended.incrementAndGet();
+        }
+    }
+
+    /**
+     * Marks the end of the log as it stands, counting messages still waiting for the writer.
+     *
+     * @return A position after every message this thread has appended so far.
+     */
+    public long position() {
+        return appended.get();
+    }
+
+    /**
+     * Returns the most recent messages.
+     *
+     * @param count How many messages at most.
+     * @return The messages, oldest first.
+     */
+    public List<String> latest(int count) {
+        long end = nextOffset;
+        long start = Math.max(0, end - Math.max(0, count));
+        List<String> messages = new ArrayList<>();
+        read(start, end, Long.MIN_VALUE, count, messages);
+        return messages;
+    }
+
+    /**
+     * Returns the messages logged at or after a moment, up to a limit.
+     *
+     * @param timestampMillis The moment, in epoch milliseconds.
+     * @param limit           How many messages at most; the latest ones are kept if there are more.
+     * @return The messages, oldest first.
+     */
+    public List<String> since(long timestampMillis, int limit) {
+        // Timestamps never decrease, so the answer lies within the last limit messages
+        long end = nextOffset;
+        List<String> messages = new ArrayList<>();
+        read(Math.max(0, end - Math.max(0, limit)), end, timestampMillis, limit, messages);
+        return messages;
+    }
+
+    /**
+     * Returns the messages logged between two positions, up to a limit.
+     *
+     * @param from  A value returned by {@link #position()}; the first message after it is included.
+     * @param to    A later value returned by {@link #position()}; messages after it are left out.
+     * @param limit How many messages at most; the latest ones are kept if there are more.
+     * @return The messages, oldest first.
+     */
+    public List<String> between(long from, long to, int limit) {
+        long end = Math.min(to, nextOffset);
+        List<String> messages = new ArrayList<>();
+        read(Math.max(from, end - Math.max(0, limit)), end, Long.MIN_VALUE, limit, messages);
+        return messages;
+    }
+
+    /**
+     * @return The number of messages that could not be logged because the writer fell behind.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes whatever is still queued and stops the writer.
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Collects messages with offsets in {@code [start, end)} and timestamps of at least {@code from}.
+     */
+    private void read(long start, long end, long from, int limit, List<String> into) {
+        if (start >= end) return;
+        // Segments before the one holding start are skipped; later ones are visited in order
+        Long first = segments.floorKey(start);
+        Map<Long, Segment> tail = first == null ? segments : segments.tailMap(first);
+        for (Segment segment : tail.values()) {
+            if (into.size() >= limit || segment.baseOffset >= end) break;
+            if (segment.lastTimestamp < from) continue;
+            segment.read(Math.max(start, segment.baseOffset), end, from, limit, into);
+        }
+    }
+
+    /**
+     * Maps the existing segments and rebuilds their indexes, then continues after the last message.
+     */
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseOffset;
+            try {
+                baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = new Segment(file, baseOffset, (int) Math.max(Files.size(file), HEADER_BYTES));
+            segment.scan();
+            if (segment.count == 0) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            segment.sealed = true;
+            segments.put(baseOffset, segment);
+            nextOffset = Math.max(nextOffset, baseOffset + segment.count);
+        }
+        // Appending always starts a fresh segment: the last one may end in a record torn by a crash
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(WRITE_BATCH);
+        long nextRetentionCheck = 0;
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, WRITE_BATCH - 1);
+                    write(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Error writing chat history: " + e.getMessage());
+                batch.clear();
+            }
+            long now = System.currentTimeMillis();
+            if (now >= nextRetentionCheck) {
+                enforceRetention(now);
+                nextRetentionCheck = now + RETENTION_CHECK_MILLIS;
+            }
+        }
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        if (last != null) last.getValue().flush();
+    }
+
+    private void write(List<Pending> batch) throws IOException {
+        long start = nextOffset;
+        long offset = start;
+        try {
+            for (Pending pending : batch) {
+                byte[] text = pending.message.getBytes(StandardCharsets.UTF_8);
+                Map.Entry<Long, Segment> last = segments.lastEntry();
+                Segment active = last == null ? null : last.getValue();
+                if (active == null || active.sealed || !active.fits(text.length)) {
+                    if (active != null) {
+                        // Readers of this batch's earlier messages must see them before the roll
+                        nextOffset = offset;
+                        active.seal();
+                        enforceRetention(System.currentTimeMillis());
+                    }
+                    active = new Segment(directory.resolve(String.format("%020d%s", offset, SUFFIX)), offset,
+                            Math.max(segmentBytes, HEADER_BYTES + text.length + Integer.BYTES));
+                    segments.put(offset, active);
+                }
+                // Keeps the timestamp index sorted even if the clock steps back
+                active.append(offset, Math.max(pending.timestamp, active.lastTimestamp), text);
+                offset++;
+            }
+        } finally {
+            // Messages that could not be written get no offset, so later positions move down with them
+            appended.addAndGet(offset - start - batch.size());
+            // Publishes what was written: each segment's size is written before this volatile store
+            nextOffset = offset;
+        }
+    }
+
+    /**
+     * Deletes the oldest sealed segments while the log is too big or they are too old.
+     */
+    private void enforceRetention(long now) {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.buffer.capacity();
+        }
+        for (Segment segment : segments.values()) {
+            if (!segment.sealed) break;
+            boolean tooBig = total > retentionBytes;
+            boolean tooOld = segment.count > 0 && segment.lastTimestamp < now - retentionMillis;
+            if (!tooBig && !tooOld) break;
+            segments.remove(segment.baseOffset);
+            total -= segment.buffer.capacity();
+            try {
+                // The mapping itself is released once no reader holds it any more
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                System.err.println("Error deleting chat history segment " + segment.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private record Pending(String message, long timestamp) {
+    }
+
+    /**
+     * One mapped segment file and its sparse index. Only the writer thread modifies it; readers only
+     * look at records below the published size.
+     */
+    private static final class Segment {
+        final Path file;
+        final long baseOffset;
+        final MappedByteBuffer buffer;
+        // Sparse index: the position and timestamp of every INDEX_INTERVAL-th record
+        int[] indexPositions = new int[16];
+        long[] indexTimestamps = new long[16];
+        int indexSize;
+        volatile int size;
+        volatile int count;
+        volatile long lastTimestamp = Long.MIN_VALUE;
+        volatile boolean sealed;
+
+        Segment(Path file, long baseOffset, int capacity) throws IOException {
+            this.file = file;
+            this.baseOffset = baseOffset;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+
+        boolean fits(int textLength) {
+            // A zero length after the last record marks the end
+            return size + HEADER_BYTES + textLength + Integer.BYTES <= buffer.capacity();
+        }
+
+        void append(long offset, long timestamp, byte[] text) {
+            int position = size;
+            if ((offset - baseOffset) % INDEX_INTERVAL == 0) {
+                addIndexEntry(position, timestamp);
+            }
+            buffer.put(position + HEADER_BYTES, text);
+            buffer.putLong(position + Integer.BYTES, timestamp);
+            // The length goes in last, so a record torn by a crash reads as the end of the segment
+            buffer.putInt(position, text.length + 1);
+            buffer.putInt(position + HEADER_BYTES + text.length, 0);
+            lastTimestamp = timestamp;
+            count++;
+            size = position + HEADER_BYTES + text.length;
+        }
+
+        /**
+         * Rebuilds the index from the records on disk, stopping at the first incomplete one.
+         */
+        void scan() {
+            int position = 0;
+            while (position + HEADER_BYTES <= buffer.capacity()) {
+                int length = buffer.getInt(position) - 1;
+                if (length < 0 || position + HEADER_BYTES + length > buffer.capacity()) break;
+                long timestamp = buffer.getLong(position + Integer.BYTES);
+                if (count % INDEX_INTERVAL == 0) {
+                    addIndexEntry(position, timestamp);
+                }
+                lastTimestamp = timestamp;
+                count++;
+                position += HEADER_BYTES + length;
+            }
+            size = position;
+        }
+
+        void seal() {
+            sealed = true;
+            flush();
+        }
+
+        void flush() {
+            buffer.force();
+        }
+
+        void read(long start, long end, long from, int limit, List<String> into) {
+            int published = size;
+            int publishedCount = count;
+            // Read after the volatile fields, so they hold at least the entries for the published records
+            int[] positions = indexPositions;
+            long[] timestamps = indexTimestamps;
+            int entries = (publishedCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            if (entries == 0) return;
+            long last = Math.min(end, baseOffset + publishedCount);
+            // Start at the index entry at or before the first offset, or at or before the first recent enough one
+            int entry = (int) Math.min((start - baseOffset) / INDEX_INTERVAL, entries - 1);
+            if (from != Long.MIN_VALUE) {
+                int byTime = Arrays.binarySearch(timestamps, 0, entries, from);
+                entry = Math.max(entry, Math.min(byTime >= 0 ? byTime : -byTime - 2, entries - 1));
+            }
+            int position = positions[entry];
+            long offset = baseOffset + (long) entry * INDEX_INTERVAL;
+            ByteBuffer view = buffer.duplicate();
+            while (offset < last && position < published && into.size() < limit) {
+                int length = view.getInt(position) - 1;
+                long timestamp = view.getLong(position + Integer.BYTES);
+                if (offset >= start && timestamp >= from) {
+                    byte[] text = new byte[length];
+                    view.get(position + HEADER_BYTES, text);
+                    into.add(new String(text, StandardCharsets.UTF_8));
+                }
+                position += HEADER_BYTES + length;
+                offset++;
+            }
+        }
+
+        private void addIndexEntry(int position, long timestamp) {
+            if (indexSize == indexPositions.length) {
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+            }
+            indexPositions[indexSize] = position;
+            indexTimestamps[indexSize] = timestamp;
+            indexSize++;
+        }
+    }
+}
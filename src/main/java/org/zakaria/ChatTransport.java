@@ -0,0 +1,55 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Accepts client connections on a port and drives a {@link ConnectionHandler} for each of them.
+ */
+public interface ChatTransport extends AutoCloseable {
+
+    /**
+     * Binds to the given port and serves connections until the transport is closed or fails.
+     * This call blocks the calling thread, just like a classic accept loop.
+     *
+     * @param port    The TCP port to listen on.
+     * @param factory Creates the handler for every accepted connection.
+     * @throws IOException If the port cannot be bound or accepting fails.
+     */
+    void serve(int port, Function<ClientConnection, ConnectionHandler> factory) throws IOException;
+
+    /**
+     * Stops accepting connections, closes every open connection and waits for their handlers
+     * to finish, after which {@link #serve} returns.
+     */
+    @Override
+    void close();
+
+    /**
+     * Creates the transport selected by the system properties.
+     *
+     * @return A transport for the configured {@link TransportMode}.
+     */
+    static ChatTransport fromSystemProperties() {
+        return create(TransportMode.fromSystemProperties());
+    }
+
+    /**
+     * Creates a transport for the given mode.
+     *
+     * @param mode The transport mode.
+     * @return A new, unstarted transport.
+     */
+    static ChatTransport create(TransportMode mode) {
+        switch (mode) {
+            case NIO:
+                return new NioTransport(Integer.getInteger("messenger.nio.threads",
+                        Runtime.getRuntime().availableProcessors()));
+            case VIRTUAL_THREADS:
+                return new BlockingTransport(Thread.ofVirtual().name("client-", 0).factory());
+            case THREAD_PER_CONNECTION:
+            default:
+                return new BlockingTransport(Thread.ofPlatform().name("client-", 0).factory());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.zakaria;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
+import java.awt.event.MouseEvent;
+import java.util.List;
+
+/**
+ * The chat pane of the Swing clients: a list of the most recent lines, one fixed-height row each.
+ * <p>
+ * Lines are kept in a ring buffer of {@code messenger.chat.scrollback} entries (default 10000); once
+ * it is full every new line drops the oldest. The list only lays out and paints the visible rows, so
+ * appending costs the same however much scrollback there is. Lines too long for the pane are cut
+ * short and shown in full as a tooltip. The view follows new lines while it is scrolled to the bottom.
+ * All methods must be called on the Event Dispatch Thread.
+ */
+class ChatView extends JScrollPane {
+    private final Lines lines = new Lines(Integer.getInteger("messenger.chat.scrollback", 10000));
+    private final JList<String> list = new JList<>(lines) {
+        @Override
+        public String getToolTipText(MouseEvent event) {
+            int index = locationToIndex(event.getPoint());
+            return index < 0 ? null : lines.getElementAt(index);
+        }
+    };
+
+    ChatView() {
+        // A narrow prototype fixes the row height and lets rows take the pane's width
+        list.setPrototypeCellValue("Xg");
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setToolTipText("");
+        setViewportView(list);
+    }
+
+    /**
+     * Adds a line at the bottom.
+     *
+     * @param line The line.
+     */
+    void append(String line) {
+        boolean follow = isAtBottom();
+        lines.add(line);
+        if (follow) scrollToBottom();
+    }
+
+    /**
+     * Adds several lines at the bottom, notifying the list once.
+     *
+     * @param batch The lines, oldest first.
+     */
+    void appendAll(List<String> batch) {
+        if (batch.isEmpty()) return;
+        boolean follow = isAtBottom();
+        lines.addAll(batch);
+        if (follow) scrollToBottom();
+    }
+
+    private boolean isAtBottom() {
+        JScrollBar bar = getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+    }
+
+    private void scrollToBottom() {
+        list.ensureIndexIsVisible(lines.getSize() - 1);
+    }
+
+    /**
+     * Ring buffer of the most recent lines.
+     */
+    private static final class Lines extends AbstractListModel<String> {
+        private final String[] buffer;
+        // Index in buffer of the oldest line
+        private int head;
+        private int size;
+
+        Lines(int capacity) {
+            buffer = new String[Math.max(1, capacity)];
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return buffer[(head + index) % buffer.length];
+        }
+
+        void add(String line) {
+            if (size == buffer.length) {
+                dropOldest(1);
+            }
+            buffer[(head + size) % buffer.length] = line;
+            size++;
+            fireIntervalAdded(this, size - 1, size - 1);
+        }
+
+        void addAll(List<String> batch) {
+            // Only the newest lines of an oversized batch fit
+            int skip = Math.max(0, batch.size() - buffer.length);
+            int added = batch.size() - skip;
+            int overflow = size + added - buffer.length;
+            if (overflow > 0) {
+                dropOldest(overflow);
+            }
+            for (int i = skip; i < batch.size(); i++) {
+                buffer[(head + size) % buffer.length] = batch.get(i);
+                size++;
+            }
+            fireIntervalAdded(this, size - added, size - 1);
+        }
+
+        private void dropOldest(int count) {
+            for (int i = 0; i < count; i++) {
+                buffer[(head + i) % buffer.length] = null;
+            }
+            head = (head + count) % buffer.length;
+            size -= count;
+            fireIntervalRemoved(this, 0, count - 1);
+        }
+    }
+}
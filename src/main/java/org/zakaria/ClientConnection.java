@@ -0,0 +1,60 @@
+package org.zakaria;
+
+/**
+ * A single client connection as seen by the chat servers, independent of the
+ * transport (blocking socket or NIO channel) that carries it.
+ */
+public interface ClientConnection {
+
+    /**
+     * Queues a line of text for delivery to the client. A line terminator is appended.
+     * Safe to call from any thread.
+     *
+     * @param message The message to send.
+     */
+    default void send(String message) {
+        send(Message.text(message));
+    }
+
+    /**
+     * Queues a message for delivery to the client, encoded for the connection's protocol.
+     * The same instance may be handed to many connections, e.g. when broadcasting.
+     * Never blocks on the network: the message goes to the client's bounded outbound queue,
+     * whose {@link OverflowPolicy} applies if the client has fallen behind.
+     * Safe to call from any thread.
+     *
+     * @param message The message to send.
+     */
+    void send(Message message);
+
+    /**
+     * Switches both directions of the connection to another protocol. Everything sent before
+     * the call keeps the old encoding, everything after uses the new one; input is decoded with
+     * the new protocol starting right after the message being handled.
+     * Must be called from the connection's own {@link ConnectionHandler} callbacks.
+     *
+     * @param protocol The new protocol.
+     */
+    void setProtocol(WireProtocol protocol);
+
+    /**
+     * @return The protocol currently used to encode messages.
+     */
+    WireProtocol getProtocol();
+
+    /**
+     * @return Statistics of the messages waiting to be written to this client.
+     */
+    QueueStats getQueueStats();
+
+    /**
+     * Closes the connection once every message already queued has been written.
+     * The handler's {@link ConnectionHandler#onClose()} is invoked exactly once afterwards.
+     */
+    void close();
+
+    /**
+     * @return A printable description of the remote peer.
+     */
+    String getRemoteAddress();
+}
@@ -0,0 +1,554 @@
+package org.zakaria;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Joins several server processes into one chat. Each node listens for its peers on
+ * {@code messenger.cluster.port} and dials the ones listed in {@code messenger.cluster.peers}
+ * ({@code host:port,host:port,...}), so the nodes of a cluster should all list each other.
+ * Clients may connect to any node and see the same rooms, chat lines and user lists.
+ * <p>
+ * Nodes exchange events over one TCP link per pair: a chat line broadcast in a room, and a user
+ * entering or leaving a room. Only events that happened on this node are sent, and an event received
+ * from a peer is applied locally but never passed on, which is what keeps events from looping around
+ * the cluster. Every event carries the sending node's sequence number, increasing within each room,
+ * so one arriving twice, say while a duplicate link is being closed, is dropped; numbering restarts
+ * with the node's epoch, picked at random when the process starts. A room's events are numbered and
+ * queued under that room's lock, so broadcasts in different rooms do not wait for each other.
+ * <p>
+ * Each peer has a queue of outgoing events, written by its own thread in batches of up to
+ * {@value #MAX_BATCH} after lingering {@code messenger.cluster.batchMillis} (default 5) for more.
+ * Chat lines queue up while a peer is unreachable, up to {@code messenger.cluster.queue} (default
+ * 65536); presence does not, since a link always starts with a full copy of the users on its node:
+ * a reset followed by one entry per user, replacing whatever the peer knew before. When a link
+ * drops, the users of its node are removed until it comes back.
+ */
+public class ClusterBridge implements Rooms.Listener {
+    private static final byte HELLO = 1;
+    private static final byte RESET = 2;
+    private static final byte ENTER = 3;
+    private static final byte EXIT = 4;
+    private static final byte CHAT = 5;
+
+    static final int BATCH_MILLIS = Integer.getInteger("messenger.cluster.batchMillis", 5);
+    static final int QUEUE_CAPACITY = Integer.getInteger("messenger.cluster.queue", 65536);
+    static final int MAX_BATCH = 512;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long MAX_RETRY_MILLIS = 10_000;
+
+    private final String nodeId;
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private final Rooms rooms;
+    private final BiConsumer<String, Message> deliver;
+    // Number of the last event; taken and queued under the event's room, so each room's events are in
+    // sequence order in every peer queue, and a room that is dropped and made again keeps counting up
+    private final AtomicLong sequence = new AtomicLong();
+    // Node id -> peer, from the first time it said hello
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    // Local users by room, as announced to the peers: room -> user -> connections. Guarded by this,
+    // which also orders announcements against the copies sent to new links.
+    private final Map<String, Map<String, Integer>> localUsers = new HashMap<>();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    /**
+     * @param nodeId  The name of this node, unique in the cluster.
+     * @param rooms   The rooms to mirror; set the bridge as their listener before starting it.
+     * @param deliver Delivers a chat line from a peer to this node's members of a room.
+     */
+    public ClusterBridge(String nodeId, Rooms rooms, BiConsumer<String, Message> deliver) {
+        this.nodeId = nodeId;
+        this.rooms = rooms;
+        this.deliver = deliver;
+    }
+
+    /**
+     * Creates and starts the bridge configured by the {@code messenger.cluster.*} properties.
+     *
+     * @param serverPort The port clients connect to, part of the default node id.
+     * @param rooms      The rooms to mirror.
+     * @param deliver    Delivers a chat line from a peer to this node's members of a room.
+     * @return The bridge, or null when {@code messenger.cluster.port} is not set.
+     * @throws IOException If the cluster port cannot be bound.
+     */
+    public static ClusterBridge fromSystemProperties(int serverPort, Rooms rooms, BiConsumer<String, Message> deliver)
+            throws IOException {
+        Integer clusterPort = Integer.getInteger("messenger.cluster.port");
+        if (clusterPort == null) return null;
+        String nodeId = System.getProperty("messenger.cluster.node", hostName() + ":" + serverPort);
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : System.getProperty("messenger.cluster.peers", "").split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            int colon = peer.lastIndexOf(':');
+            addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        ClusterBridge bridge = new ClusterBridge(nodeId, rooms, deliver);
+        rooms.setListener(bridge);
+        bridge.start(clusterPort, addresses);
+        return bridge;
+    }
+
+    /**
+     * Listens for peers and starts dialling the given ones, retrying for as long as the bridge is open.
+     *
+     * @param port  The port peers connect to.
+     * @param dials The peers to connect to.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void start(int port, List<InetSocketAddress> dials) throws IOException {
+        serverSocket = new ServerSocket(port);
+        System.out.println("Cluster node " + nodeId + " listening for peers on port " + port);
+        Thread.ofVirtual().name("cluster-accept").start(this::accept);
+        for (InetSocketAddress address : dials) {
+            Thread.ofVirtual().name("cluster-dial-" + address.getHostString() + ":" + address.getPort()).start(() -> dial(address));
+        }
+    }
+
+    /**
+     * Stops listening and drops every link.
+     */
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Peer peer : peers.values()) {
+            peer.lock.lock();
+            try {
+                if (peer.link != null) peer.link.close();
+            } finally {
+                peer.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void entered(Rooms.Room room, String userName) {
+        localUsers.computeIfAbsent(room.getName(), name -> new HashMap<>()).merge(userName, 1, Integer::sum);
+        publish(room, ENTER, userName, false);
+    }
+
+    @Override
+    public synchronized void exited(Rooms.Room room, String userName) {
+        Map<String, Integer> users = localUsers.get(room.getName());
+        if (users == null) return;
+        users.computeIfPresent(userName, (name, count) -> count > 1 ? count - 1 : null);
+        if (users.isEmpty()) localUsers.remove(room.getName());
+        publish(room, EXIT, userName, false);
+    }
+
+    @Override
+    public void broadcast(Rooms.Room room, Message message) {
+        // Chat only takes its room's lock; presence also holds this bridge's monitor, for the copies sent to new links
+        publish(room, CHAT, message.getPayload(), true);
+    }
+
+    /**
+     * Numbers an event and queues it for every peer; presence only for the linked ones, since the
+     * others will get a full copy when they link.
+     */
+    private void publish(Rooms.Room room, byte type, String value, boolean queueWhileDown) {
+        synchronized (room) {
+            Event event = new Event(type, sequence.incrementAndGet(), room.getName(), value);
+            for (Peer peer : peers.values()) {
+                peer.offer(event, queueWhileDown);
+            }
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("cluster-link").start(() -> new Link(socket, false).run());
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Error accepting cluster peer: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void dial(InetSocketAddress address) {
+        long retryMillis = 500;
+        boolean reported = false;
+        while (!closed) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+                reported = false;
+                if (new Link(socket, true).run()) {
+                    retryMillis = 500;
+                }
+            } catch (IOException e) {
+                if (!reported) {
+                    System.err.println("Cannot reach cluster peer " + address.getHostString() + ":" + address.getPort()
+                            + ": " + e.getMessage() + "; retrying");
+                    reported = true;
+                }
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Ignore
+                }
+            }
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+
+    /**
+     * One unit of the cluster protocol. For {@link #HELLO} the sequence is the sender's epoch and
+     * the room its node id.
+     */
+    private record Event(byte type, long sequence, String room, String value) {
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            out.writeLong(sequence);
+            writeString(out, room);
+            writeString(out, value);
+        }
+
+        static Event readFrom(DataInputStream in) throws IOException {
+            return new Event(in.readByte(), in.readLong(), readString(in), readString(in));
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0 || length > WireProtocol.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid string length: " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Another node: its outgoing queue, its link if any, and what it told us.
+     */
+    private final class Peer {
+        private final String nodeId;
+        // Guards queue and link; the link's writer waits on ready
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition ready = lock.newCondition();
+        private final ArrayDeque<Event> queue = new ArrayDeque<>();
+        private Link link;
+        private long dropped;
+        // Guards what follows; held while applying the peer's events, never while taking the other locks
+        private final ReentrantLock receiving = new ReentrantLock();
+        private long epoch;
+        // Room -> number of the last event applied from it
+        private final Map<String, Long> lastSequences = new HashMap<>();
+        // The peer's users: room -> user -> connections
+        private final Map<String, Map<String, Integer>> users = new HashMap<>();
+
+        Peer(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        void offer(Event event, boolean queueWhileDown) {
+            lock.lock();
+            try {
+                if (link == null && !queueWhileDown) return;
+                if (queue.size() >= QUEUE_CAPACITY) {
+                    dropped++;
+                    return;
+                }
+                queue.add(event);
+                ready.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Makes a link the peer's only one, replacing the queued presence with a full copy of ours.
+         * Called holding the bridge's monitor, so no announcement slips between the copy and the queue.
+         * When two nodes dial each other at once, both keep the link dialled by the smaller node id.
+         *
+         * @return Whether the link was accepted; false if the peer keeps the one it has.
+         */
+        boolean attach(Link candidate) {
+            lock.lock();
+            try {
+                if (link != null) {
+                    if (candidate.dialler().compareTo(link.dialler()) >= 0) return false;
+                    link.close();
+                }
+                link = candidate;
+                queue.removeIf(event -> event.type() != CHAT);
+                List<Event> copy = new ArrayList<>();
+                copy.add(new Event(RESET, 0, "", ""));
+                for (Map.Entry<String, Map<String, Integer>> room : localUsers.entrySet()) {
+                    for (Map.Entry<String, Integer> user : room.getValue().entrySet()) {
+                        for (int i = 0; i < user.getValue(); i++) {
+                            copy.add(new Event(ENTER, 0, room.getKey(), user.getKey()));
+                        }
+                    }
+                }
+                for (int i = copy.size() - 1; i >= 0; i--) {
+                    queue.addFirst(copy.get(i));
+                }
+                ready.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void detach(Link closing) {
+            receiving.lock();
+            try {
+                lock.lock();
+                try {
+                    // A replaced link leaves the users to its successor, which starts with a reset
+                    if (link != closing) return;
+                    link = null;
+                    ready.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                forgetUsers();
+            } finally {
+                receiving.unlock();
+            }
+        }
+
+        /**
+         * Waits for events to send, then for a few more to batch with them.
+         *
+         * @return Up to {@value #MAX_BATCH} events, or null once the link is no longer current.
+         */
+        List<Event> take(Link current) throws InterruptedException {
+            lock.lock();
+            try {
+                while (queue.isEmpty() && link == current) {
+                    ready.await();
+                }
+                long lingerNanos = TimeUnit.MILLISECONDS.toNanos(BATCH_MILLIS);
+                while (queue.size() < MAX_BATCH && lingerNanos > 0 && link == current) {
+                    lingerNanos = ready.awaitNanos(lingerNanos);
+                }
+                if (link != current) return null;
+                List<Event> batch = new ArrayList<>(Math.min(queue.size(), MAX_BATCH));
+                while (!queue.isEmpty() && batch.size() < MAX_BATCH) {
+                    batch.add(queue.poll());
+                }
+                return batch;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void hello(long peerEpoch) {
+            receiving.lock();
+            try {
+                // A restarted peer numbers its events from one again
+                if (peerEpoch != epoch) {
+                    epoch = peerEpoch;
+                    lastSequences.clear();
+                }
+            } finally {
+                receiving.unlock();
+            }
+        }
+
+        void receive(Link from, Event event) {
+            receiving.lock();
+            try {
+                // Whatever a replaced link still delivers is stale next to its successor's reset
+                if (!isCurrent(from)) return;
+                if (event.sequence() != 0) {
+                    Long last = lastSequences.get(event.room());
+                    if (last != null && event.sequence() <= last) return;
+                    lastSequences.put(event.room(), event.sequence());
+                }
+                switch (event.type()) {
+                    case RESET:
+                        forgetUsers();
+                        break;
+                    case ENTER:
+                        users.computeIfAbsent(event.room(), room -> new HashMap<>()).merge(event.value(), 1, Integer::sum);
+                        rooms.remoteEntered(event.room(), event.value());
+                        break;
+                    case EXIT:
+                        Map<String, Integer> roomUsers = users.get(event.room());
+                        // Not known to be there; ignore rather than unbalance the room
+                        if (roomUsers == null || !roomUsers.containsKey(event.value())) break;
+                        roomUsers.computeIfPresent(event.value(), (name, count) -> count > 1 ? count - 1 : null);
+                        if (roomUsers.isEmpty()) users.remove(event.room());
+                        rooms.remoteExited(event.room(), event.value());
+                        break;
+                    case CHAT:
+                        deliver.accept(event.room(), Message.text(event.value()));
+                        break;
+                    default:
+                        break;
+                }
+            } finally {
+                receiving.unlock();
+            }
+        }
+
+        private boolean isCurrent(Link candidate) {
+            lock.lock();
+            try {
+                return link == candidate;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes every user this peer listed.
+         */
+        private void forgetUsers() {
+            for (Map.Entry<String, Map<String, Integer>> room : users.entrySet()) {
+                for (Map.Entry<String, Integer> user : room.getValue().entrySet()) {
+                    for (int i = 0; i < user.getValue(); i++) {
+                        rooms.remoteExited(room.getKey(), user.getKey());
+                    }
+                }
+            }
+            users.clear();
+        }
+    }
+
+    /**
+     * One TCP connection to a peer, either dialled or accepted. The thread running it reads;
+     * a second one writes the peer's queue.
+     */
+    private final class Link {
+        private final Socket socket;
+        private final boolean dialled;
+        private String peerId;
+
+        Link(Socket socket, boolean dialled) {
+            this.socket = socket;
+            this.dialled = dialled;
+        }
+
+        /**
+         * @return The id of the node that opened the link.
+         */
+        String dialler() {
+            return dialled ? nodeId : peerId;
+        }
+
+        /**
+         * Says hello, links up with the peer and applies its events until the connection ends.
+         *
+         * @return Whether the link was established.
+         */
+        boolean run() {
+            Peer peer = null;
+            try {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                new Event(HELLO, epoch, nodeId, "").writeTo(out);
+                out.flush();
+                Event hello = Event.readFrom(in);
+                if (hello.type() != HELLO || hello.room().equals(nodeId)) {
+                    // Not a peer, or ourselves through a listed address
+                    return false;
+                }
+                peerId = hello.room();
+                Peer candidate = peers.computeIfAbsent(peerId, Peer::new);
+                boolean attached;
+                synchronized (ClusterBridge.this) {
+                    attached = candidate.attach(this);
+                }
+                // Keep the link already there; events are numbered, so nothing is lost or doubled
+                if (!attached) return false;
+                peer = candidate;
+                peer.hello(hello.sequence());
+                System.out.println("Linked to cluster node " + peer.nodeId + " at " + socket.getRemoteSocketAddress());
+                Peer linked = peer;
+                Thread.ofVirtual().name("cluster-writer-" + peer.nodeId).start(() -> write(linked, out));
+                while (true) {
+                    peer.receive(this, Event.readFrom(in));
+                }
+            } catch (IOException e) {
+                // A link replaced by a preferred one goes quietly
+                if (peer != null && !closed && peer.isCurrent(this)) {
+                    System.out.println("Lost cluster node " + peer.nodeId + (e instanceof EOFException ? "" : ": " + e.getMessage()));
+                }
+                return peer != null;
+            } finally {
+                close();
+                if (peer != null) {
+                    peer.detach(this);
+                }
+            }
+        }
+
+        private void write(Peer peer, DataOutputStream out) {
+            try {
+                List<Event> batch;
+                while ((batch = peer.take(this)) != null) {
+                    for (Event event : batch) {
+                        event.writeTo(out);
+                    }
+                    // One flush, and usually one packet, per batch
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
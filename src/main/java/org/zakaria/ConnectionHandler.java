@@ -0,0 +1,37 @@
+package org.zakaria;
+
+/**
+ * Callbacks a server registers for each accepted connection.
+ * A transport invokes these sequentially for a given connection, never concurrently,
+ * so handler state needs no locking. Callbacks must not block for long in
+ * {@link TransportMode#NIO} mode since they run on a shared event-loop thread.
+ */
+public interface ConnectionHandler {
+
+    /**
+     * Called once the connection is ready, before any line is delivered.
+     */
+    void onOpen();
+
+    /**
+     * Called for every line received from the client, without its line terminator.
+     *
+     * @param line The received line.
+     */
+    void onLine(String line);
+
+    /**
+     * Called for every frame received after the connection switched to {@link WireProtocol#BINARY}.
+     * By default the frame is handled like its legacy text line.
+     *
+     * @param message The received message.
+     */
+    default void onFrame(Message message) {
+        onLine(message.toLine());
+    }
+
+    /**
+     * Called once when the connection has been closed by either side.
+     */
+    void onClose();
+}
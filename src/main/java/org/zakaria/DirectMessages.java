@@ -0,0 +1,79 @@
+package org.zakaria;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes {@code /msg <user> <text>} straight to the addressee's connections instead of
+ * broadcasting it.
+ * <p>
+ * Connections are registered under their normalised user name ({@link UserRegistry#key(String)}),
+ * so finding the recipients is one map lookup whatever the number of users. A name used by
+ * several connections at once reaches all of them. The recipient gets a
+ * {@link Opcode#PRIVATE_MESSAGE} ({@code sender:text}) and the sender a {@link Opcode#PRIVATE_STATUS}
+ * ({@code user:delivered} or {@code user:offline}); delivered means queued for the recipient.
+ * Message text is never logged.
+ */
+public class DirectMessages {
+    static final String DELIVERED = "delivered";
+    static final String OFFLINE = "offline";
+
+    // Normalised name -> the connections of that user, usually one; changes for a name run inside compute
+    private final ConcurrentHashMap<String, Set<ClientConnection>> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Makes a connection reachable under a user name.
+     *
+     * @param userName   The user's name.
+     * @param connection The user's connection.
+     */
+    public void register(String userName, ClientConnection connection) {
+        routes.compute(UserRegistry.key(userName), (key, connections) -> {
+            if (connections == null) {
+                connections = ConcurrentHashMap.newKeySet();
+            }
+            connections.add(connection);
+            return connections;
+        });
+    }
+
+    /**
+     * @param userName   The name passed to {@link #register(String, ClientConnection)}.
+     * @param connection The connection.
+     */
+    public void unregister(String userName, ClientConnection connection) {
+        routes.computeIfPresent(UserRegistry.key(userName), (key, connections) -> {
+            connections.remove(connection);
+            return connections.isEmpty() ? null : connections;
+        });
+    }
+
+    /**
+     * Handles {@code /msg}: delivers a private message and tells the sender whether it went out.
+     *
+     * @param sender     The sender's connection.
+     * @param senderName The sender's user name, shown to the recipient.
+     * @param request    The command payload: the recipient's name, a space, then the text.
+     */
+    public void send(ClientConnection sender, String senderName, String request) {
+        request = request.trim();
+        int space = request.indexOf(' ');
+        String text = space < 0 ? "" : request.substring(space + 1).trim();
+        if (text.isEmpty()) {
+            sender.send("Usage: /msg <user> <message>");
+            return;
+        }
+        String recipient = request.substring(0, space);
+        Set<ClientConnection> connections = routes.get(UserRegistry.key(recipient));
+        if (connections == null) {
+            sender.send(Message.of(Opcode.PRIVATE_STATUS, recipient + ":" + OFFLINE));
+            return;
+        }
+        // Encoded once even when the recipient is connected more than once
+        Message message = Message.of(Opcode.PRIVATE_MESSAGE, senderName + ":" + text);
+        for (ClientConnection connection : connections) {
+            connection.send(message);
+        }
+        sender.send(Message.of(Opcode.PRIVATE_STATUS, recipient + ":" + DELIVERED));
+    }
+}
@@ -0,0 +1,66 @@
+package org.zakaria;
+
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Hands items from background threads to the Event Dispatch Thread in batches.
+ * <p>
+ * {@link #post(Object)} only adds to a lock-free queue; at most one drain task is ever waiting on
+ * the EDT, however fast items arrive, and it applies everything queued so far in one call.
+ * A drain takes at most {@value #MAX_BATCH} items and leaves the rest to a fresh task, so input
+ * and repaint events get their turn between batches during a flood.
+ *
+ * @param <T> The type of the items.
+ */
+class EdtQueue<T> {
+    private static final int MAX_BATCH = 2048;
+
+    private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Consumer<List<T>> apply;
+
+    /**
+     * @param apply Applies a batch of items, oldest first, on the EDT.
+     */
+    EdtQueue(Consumer<List<T>> apply) {
+        this.apply = apply;
+    }
+
+    /**
+     * Queues an item to be applied on the EDT. May be called from any thread.
+     *
+     * @param item The item.
+     */
+    void post(T item) {
+        queue.offer(item);
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drain);
+        }
+    }
+
+    private void drain() {
+        List<T> batch = new ArrayList<>(Math.min(MAX_BATCH, 64));
+        T item;
+        while (batch.size() < MAX_BATCH && (item = queue.poll()) != null) {
+            batch.add(item);
+        }
+        try {
+            apply.accept(batch);
+        } finally {
+            if (!queue.isEmpty()) {
+                SwingUtilities.invokeLater(this::drain);
+            } else {
+                scheduled.set(false);
+                // An item posted after the check above saw the flag still set and did not schedule
+                if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                    SwingUtilities.invokeLater(this::drain);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The wire bytes of a {@link Message} in one {@link WireProtocol}, encoded once so that they can
+ * be written to any number of connections without being re-encoded for each of them.
+ * Instances are immutable and safe to share between threads.
+ */
+public final class EncodedMessage {
+    private final byte[] bytes;
+
+    private EncodedMessage(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Encodes a {@link WireProtocol#TEXT} line. Line breaks inside the message would end the
+     * line early, so they are replaced by spaces.
+     *
+     * @param message The message, without line terminator.
+     * @return The encoded message.
+     */
+    static EncodedMessage line(String message) {
+        String line = message.indexOf('\n') >= 0 || message.indexOf('\r') >= 0
+                ? message.replace('\r', ' ').replace('\n', ' ')
+                : message;
+        return new EncodedMessage((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a {@link WireProtocol#BINARY} frame.
+     *
+     * @param opcode  The message type.
+     * @param payload The payload, encoded as UTF-8.
+     * @return The encoded frame.
+     */
+    static EncodedMessage frame(Opcode opcode, String payload) {
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + body.length);
+        frame.putInt(1 + body.length).put((byte) opcode.getCode()).put(body);
+        return new EncodedMessage(frame.array());
+    }
+
+    /**
+     * @return The encoded size in bytes, framing included.
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * @return A new read-only view of the shared bytes, positioned at the start.
+     */
+    ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * Copies the encoded bytes into a buffer.
+     *
+     * @return The position right after the copied bytes.
+     */
+    int copyTo(byte[] destination, int position) {
+        System.arraycopy(bytes, 0, destination, position, bytes.length);
+        return position + bytes.length;
+    }
+}
@@ -0,0 +1,348 @@
+package org.zakaria;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.script.ScriptException;
+
+/**
+ * Runs EVAL requests on a fixed set of worker threads instead of the thread that read them,
+ * so a slow or endless expression never holds up a client's chat input.
+ * <p>
+ * Every client submits through its own {@link Lane}, which runs that client's requests one at a time
+ * and in order. At most {@code queueLimit} requests may be pending across all clients; beyond that
+ * a request is answered with {@link #BUSY} straight away. Each request must finish within
+ * {@code timeoutMillis} of being submitted, or it is answered with {@link #TIMEOUT}. A request still
+ * running at its deadline is interrupted, and since script engines do not stop for interrupts its
+ * worker thread is written off and replaced, so the pool keeps its full capacity.
+ * <p>
+ * A written-off thread may spin for ever, so at most {@code maxRunaways} of them are replaced: past
+ * that the pool shrinks instead, and once every worker is stuck requests are answered with {@link #BUSY}.
+ * A runaway that does finish makes room for a new worker again. The pool thus never runs more than
+ * {@code threads + maxRunaways} threads.
+ * Sizes come from {@code messenger.eval.threads} (default: CPU count), {@code messenger.eval.queue}
+ * (default 256), {@code messenger.eval.maxRunaways} (default: the thread count) and
+ * {@code messenger.eval.timeoutMillis} (default 2000).
+ */
+public class EvalPool {
+    static final String BUSY = "Error: the server is busy, try again later.";
+    static final String TIMEOUT = "Error: evaluation timed out.";
+    static final String ERROR = "Error evaluating expression.";
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+
+    private final BlockingQueue<Request> ready = new LinkedBlockingQueue<>();
+    private final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "eval-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger workerIds = new AtomicInteger();
+    // Workers taking requests, and written-off ones still running; changed together under this
+    private int workers;
+    private int runaways;
+    private final Request poison = new Request(null, null, null, null);
+    private final int threads;
+    private final int maxRunaways;
+    private final int queueLimit;
+    private final long timeoutMillis;
+    private volatile boolean shutdown;
+
+    public EvalPool() {
+        this(Integer.getInteger("messenger.eval.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("messenger.eval.queue", 256),
+                Integer.getInteger("messenger.eval.maxRunaways", Runtime.getRuntime().availableProcessors()),
+                Long.getLong("messenger.eval.timeoutMillis", 2000));
+    }
+
+    public EvalPool(int threads, int queueLimit, int maxRunaways, long timeoutMillis) {
+        this.threads = Math.max(1, threads);
+        this.maxRunaways = Math.max(0, maxRunaways);
+        this.queueLimit = Math.max(1, queueLimit);
+        this.timeoutMillis = timeoutMillis;
+        deadlines.setRemoveOnCancelPolicy(true);
+        replenish();
+    }
+
+    /**
+     * Opens a lane for one client.
+     *
+     * @return A new, empty lane.
+     */
+    public Lane openLane() {
+        return new Lane();
+    }
+
+    /**
+     * Stops the workers. Requests still pending are dropped without a reply.
+     */
+    public void shutdown() {
+        shutdown = true;
+        deadlines.shutdownNow();
+        Request request;
+        while ((request = ready.poll()) != null) {
+            request.cancel();
+        }
+        for (int i = 0; i < workerIds.get(); i++) {
+            // Wakes up idle workers so they see the shutdown flag
+            ready.offer(poison);
+        }
+    }
+
+    /**
+     * Starts workers up to the configured count, as far as the runaways leave room for.
+     */
+    private synchronized void replenish() {
+        while (!shutdown && workers < threads && workers + runaways < threads + maxRunaways) {
+            workers++;
+            startWorker();
+        }
+    }
+
+    /**
+     * Writes off a worker stuck past a deadline, replacing it if the runaway limit allows.
+     */
+    private void abandon(Worker worker) {
+        synchronized (this) {
+            worker.abandoned = true;
+            workers--;
+            runaways++;
+        }
+        worker.thread.interrupt();
+        replenish();
+    }
+
+    private synchronized boolean hasWorkers() {
+        return workers > 0;
+    }
+
+    private void startWorker() {
+        Worker worker = new Worker();
+        Thread thread = new Thread(worker, "eval-" + workerIds.getAndIncrement());
+        thread.setDaemon(true);
+        worker.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * A worker thread. Once it has been written off it finishes its current request and exits.
+     */
+    private class Worker implements Runnable {
+        private Thread thread;
+        private volatile boolean abandoned;
+
+        @Override
+        public void run() {
+            while (!shutdown && !abandoned) {
+                Request request;
+                try {
+                    request = ready.take();
+                } catch (InterruptedException e) {
+                    // Only written-off workers are interrupted, and the loop lets them exit
+                    continue;
+                }
+                if (request != poison) {
+                    request.run(this);
+                }
+            }
+            if (abandoned) {
+                // The runaway finished after all; its place may go to a new worker
+                synchronized (EvalPool.this) {
+                    runaways--;
+                }
+                replenish();
+            }
+        }
+    }
+
+    /**
+     * The requests of one client, run one at a time in submission order.
+     */
+    public class Lane {
+        private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+        private boolean active;
+        private boolean closed;
+
+        /**
+         * Queues an evaluation.
+         *
+         * @param task      Computes the result text. A {@link ScriptException} or any other failure
+         *                  is answered with {@link #ERROR}.
+         * @param reply     Receives exactly one reply: the result, or {@link #BUSY}, {@link #TIMEOUT}
+         *                  or {@link #ERROR}. Called from a pool thread.
+         * @param onTimeout Called once if the task was still running at its deadline, e.g. to discard
+         *                  state the runaway task may still be holding.
+         */
+        public void submit(Callable<String> task, Consumer<String> reply, Runnable onTimeout) {
+            // With every worker stuck in a runaway, nothing would run before the deadline anyway
+            if (shutdown || !hasWorkers()) {
+                Metrics.evalsRejected.increment();
+                reply.accept(BUSY);
+                return;
+            }
+            if (pending.incrementAndGet() > queueLimit) {
+                pending.decrementAndGet();
+                Metrics.evalsRejected.increment();
+                reply.accept(BUSY);
+                return;
+            }
+            Request request = new Request(this, task, reply, onTimeout);
+            synchronized (this) {
+                if (closed) {
+                    pending.decrementAndGet();
+                    return;
+                }
+                request.deadline = deadlines.schedule(request::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+                if (active) {
+                    waiting.addLast(request);
+                } else {
+                    active = true;
+                    ready.add(request);
+                }
+            }
+        }
+
+        /**
+         * Replies with a result that is already known, after the replies to the requests before it,
+         * so a client gets its answers in the order it asked.
+         *
+         * @param result The result text.
+         * @param reply  Receives the result, from this thread if nothing is ahead of it, or else from a pool thread.
+         */
+        public void answer(String result, Consumer<String> reply) {
+            synchronized (this) {
+                if (closed) return;
+                if (active) {
+                    waiting.addLast(new Request(this, result, reply));
+                    return;
+                }
+            }
+            reply.accept(result);
+        }
+
+        /**
+         * Drops every request that has not started yet, without replying. Called when the client
+         * disconnects; a request already running is left to finish or hit its deadline.
+         */
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                for (Request request : waiting) {
+                    request.cancel();
+                }
+                waiting.clear();
+            }
+        }
+
+        /**
+         * Hands the next waiting request to the workers once the previous one is done.
+         */
+        private synchronized void next() {
+            Request request;
+            // Known answers go out in their turn without a worker
+            while ((request = waiting.pollFirst()) != null && request.answer != null) {
+                request.reply.accept(request.answer);
+            }
+            if (request == null) {
+                active = false;
+            } else {
+                ready.add(request);
+            }
+        }
+    }
+
+    /**
+     * One evaluation. Its state moves from QUEUED to RUNNING to DONE, or straight to DONE if it
+     * expires or is cancelled first; whoever moves it to DONE sends the reply.
+     */
+    private class Request {
+        private final Lane lane;
+        private final Callable<String> task;
+        private final Consumer<String> reply;
+        private final Runnable onTimeout;
+        // The result already, for a request only queued to keep replies in order; it has no deadline
+        private final String answer;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private volatile ScheduledFuture<?> deadline;
+        private volatile Worker worker;
+
+        Request(Lane lane, Callable<String> task, Consumer<String> reply, Runnable onTimeout) {
+            this.lane = lane;
+            this.task = task;
+            this.reply = reply;
+            this.onTimeout = onTimeout;
+            this.answer = null;
+        }
+
+        Request(Lane lane, String answer, Consumer<String> reply) {
+            this.lane = lane;
+            this.task = null;
+            this.reply = reply;
+            this.onTimeout = null;
+            this.answer = answer;
+        }
+
+        void run(Worker worker) {
+            this.worker = worker;
+            if (!state.compareAndSet(QUEUED, RUNNING)) return;
+            String result;
+            long start = System.nanoTime();
+            try {
+                result = task.call();
+            } catch (Exception | StackOverflowError e) {
+                Metrics.evalErrors.increment();
+                result = ERROR;
+            }
+            Metrics.evals.increment();
+            Metrics.evalTime.record(System.nanoTime() - start);
+            if (state.compareAndSet(RUNNING, DONE)) {
+                deadline.cancel(false);
+                finish(result, true);
+            }
+        }
+
+        void expire() {
+            if (state.compareAndSet(QUEUED, DONE)) {
+                // Still behind another request of the same client: that one keeps the lane
+                boolean waiting;
+                synchronized (lane) {
+                    waiting = lane.waiting.remove(this);
+                }
+                Metrics.evalsTimedOut.increment();
+                finish(TIMEOUT, !waiting);
+            } else if (state.compareAndSet(RUNNING, DONE)) {
+                Worker runaway = worker;
+                abandon(runaway);
+                System.err.println("Evaluation on " + runaway.thread.getName() + " timed out; wrote off the worker");
+                Metrics.evalsTimedOut.increment();
+                onTimeout.run();
+                finish(TIMEOUT, true);
+            }
+        }
+
+        void cancel() {
+            if (answer == null && state.compareAndSet(QUEUED, DONE)) {
+                deadline.cancel(false);
+                pending.decrementAndGet();
+            }
+        }
+
+        private void finish(String result, boolean advance) {
+            pending.decrementAndGet();
+            try {
+                reply.accept(result);
+            } finally {
+                if (advance) lane.next();
+            }
+        }
+    }
+}
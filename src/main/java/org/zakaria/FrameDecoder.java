@@ -0,0 +1,69 @@
+package org.zakaria;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incrementally decodes {@link WireProtocol#BINARY} frames. Like {@link LineDecoder}, only an
+ * incomplete trailing frame is buffered between calls.
+ */
+class FrameDecoder implements InboundDecoder {
+    private static final int HEADER_LENGTH = 4;
+
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private int headerLength;
+    private byte[] body;
+    private int bodyLength;
+
+    @Override
+    public boolean decodeNext(ByteBuffer in, ConnectionHandler handler) throws IOException {
+        if (body == null) {
+            int count = Math.min(HEADER_LENGTH - headerLength, in.remaining());
+            in.get(header, headerLength, count);
+            headerLength += count;
+            if (headerLength < HEADER_LENGTH) return false;
+            body = new byte[checkLength(ByteBuffer.wrap(header).getInt())];
+            headerLength = 0;
+            bodyLength = 0;
+        }
+        int count = Math.min(body.length - bodyLength, in.remaining());
+        in.get(body, bodyLength, count);
+        bodyLength += count;
+        if (bodyLength < body.length) return false;
+
+        byte[] frame = body;
+        body = null;
+        handler.onFrame(toMessage(frame));
+        return true;
+    }
+
+    /**
+     * Reads one frame from a blocking stream, for clients that do not need incremental decoding.
+     *
+     * @param in The stream to read from.
+     * @return The decoded message.
+     * @throws IOException If the stream ends or the frame is invalid.
+     */
+    static Message read(DataInputStream in) throws IOException {
+        byte[] frame = new byte[checkLength(in.readInt())];
+        in.readFully(frame);
+        return toMessage(frame);
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 1 || length > WireProtocol.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    private static Message toMessage(byte[] frame) throws IOException {
+        Opcode opcode = Opcode.fromCode(frame[0]);
+        if (opcode == null) {
+            throw new IOException("Unknown opcode: " + (frame[0] & 0xFF));
+        }
+        return Message.of(opcode, new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,286 @@
+package org.zakaria;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spatial index of users by position, answering radius and k-nearest-neighbour queries.
+ * <p>
+ * Positions are stored as points on the unit sphere in an octree whose leaves split once they hold
+ * more than a handful of users, so dense clusters get deep, small cells and empty regions cost nothing.
+ * Straight-line (chord) distance between unit vectors grows with great-circle distance, which makes
+ * the octree's box distances valid bounds on the sphere, with no special cases at the poles or the
+ * antimeridian. Queries visit only cells that can contain an answer.
+ * <p>
+ * Safe for concurrent use: queries share a read lock, updates take the write lock.
+ */
+public class GeoIndex {
+    static final double EARTH_RADIUS_KM = 6371.0088;
+    private static final int LEAF_CAPACITY = 16;
+    // Cells at this depth are under a metre across; users at the same spot just share the leaf
+    private static final int MAX_DEPTH = 24;
+
+    private final Node root = new Node(-1, -1, -1, 2, 0);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * A user found by a query, with its great-circle distance from the query position.
+     */
+    public record Neighbor(User user, double distanceKm) {
+    }
+
+    /**
+     * Adds a user at its current position.
+     *
+     * @param user The user.
+     */
+    public void add(User user) {
+        Point point = new Point(user);
+        lock.writeLock().lock();
+        try {
+            root.add(point);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a user, found by identity at the position it was added with.
+     *
+     * @param user The user, as passed to {@link #add(User)}.
+     * @return {@code true} if the user was in the index.
+     */
+    public boolean remove(User user) {
+        Point point = new Point(user);
+        lock.writeLock().lock();
+        try {
+            return root.remove(point);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the users within a radius, nearest first.
+     *
+     * @param latitude  Latitude of the centre, in degrees.
+     * @param longitude Longitude of the centre, in degrees.
+     * @param radiusKm  The radius, in kilometres.
+     * @param limit     How many users to return at most.
+     * @param exclude   A user to leave out of the result, typically the one asking; may be null.
+     * @return Up to {@code limit} users.
+     */
+    public List<Neighbor> within(double latitude, double longitude, double radiusKm, int limit, User exclude) {
+        // Past half the circumference, everything is in range
+        double chord = radiusKm >= Math.PI * EARTH_RADIUS_KM ? 2 : 2 * Math.sin(radiusKm / (2 * EARTH_RADIUS_KM));
+        return search(new Point(null, latitude, longitude), limit, chord * chord, exclude);
+    }
+
+    /**
+     * Finds the users closest to a position, nearest first.
+     *
+     * @param latitude  Latitude of the position, in degrees.
+     * @param longitude Longitude of the position, in degrees.
+     * @param k         How many users to return at most.
+     * @param exclude   A user to leave out of the result, typically the one asking; may be null.
+     * @return Up to {@code k} users.
+     */
+    public List<Neighbor> nearest(double latitude, double longitude, int k, User exclude) {
+        // No two points on the unit sphere are further apart than its diameter
+        return search(new Point(null, latitude, longitude), k, 4, exclude);
+    }
+
+    /**
+     * Best-first search: cells are queued by the distance to their box and points by their own,
+     * so points come off the queue nearest first and the search stops after {@code limit} of them,
+     * having opened only the cells closer than the last one.
+     */
+    private List<Neighbor> search(Point centre, int limit, double maxChordSquared, User exclude) {
+        List<Neighbor> neighbors = new ArrayList<>(Math.max(0, Math.min(limit, 64)));
+        PriorityQueue<Candidate> queue = new PriorityQueue<>(Comparator.comparingDouble(Candidate::distanceSquared));
+        lock.readLock().lock();
+        try {
+            queue.add(new Candidate(root.distanceSquared(centre), root, null));
+            while (neighbors.size() < limit && !queue.isEmpty()) {
+                Candidate candidate = queue.poll();
+                if (candidate.distanceSquared() > maxChordSquared) {
+                    break;
+                }
+                if (candidate.point() != null) {
+                    if (candidate.point().user != exclude) {
+                        neighbors.add(new Neighbor(candidate.point().user, distanceKm(candidate.distanceSquared())));
+                    }
+                } else if (candidate.node().children == null) {
+                    for (Point point : candidate.node().points) {
+                        queue.add(new Candidate(point.distanceSquared(centre), null, point));
+                    }
+                } else {
+                    for (Node child : candidate.node().children) {
+                        if (child.count > 0) {
+                            queue.add(new Candidate(child.distanceSquared(centre), child, null));
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return neighbors;
+    }
+
+    /**
+     * @return The number of users in the index.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return root.count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static double distanceKm(double chordSquared) {
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(chordSquared) / 2));
+    }
+
+    private record Candidate(double distanceSquared, Node node, Point point) {
+    }
+
+    /**
+     * A user's position as a unit vector.
+     */
+    private static final class Point {
+        final User user;
+        final double x;
+        final double y;
+        final double z;
+
+        Point(User user) {
+            this(user, user.getLatitude(), user.getLongitude());
+        }
+
+        Point(User user, double latitude, double longitude) {
+            double phi = Math.toRadians(latitude);
+            double lambda = Math.toRadians(longitude);
+            this.user = user;
+            this.x = Math.cos(phi) * Math.cos(lambda);
+            this.y = Math.cos(phi) * Math.sin(lambda);
+            this.z = Math.sin(phi);
+        }
+
+        double distanceSquared(Point other) {
+            double dx = x - other.x;
+            double dy = y - other.y;
+            double dz = z - other.z;
+            return dx * dx + dy * dy + dz * dz;
+        }
+    }
+
+    /**
+     * An octree cell: a leaf holding points, or eight children.
+     */
+    private static final class Node {
+        final double minX;
+        final double minY;
+        final double minZ;
+        final double size;
+        final int depth;
+        List<Point> points = new ArrayList<>();
+        Node[] children;
+        int count;
+
+        Node(double minX, double minY, double minZ, double size, int depth) {
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.size = size;
+            this.depth = depth;
+        }
+
+        void add(Point point) {
+            count++;
+            if (children != null) {
+                children[childIndex(point)].add(point);
+                return;
+            }
+            points.add(point);
+            if (points.size() > LEAF_CAPACITY && depth < MAX_DEPTH) {
+                split();
+            }
+        }
+
+        boolean remove(Point point) {
+            boolean removed;
+            if (children != null) {
+                Node child = children[childIndex(point)];
+                removed = child.remove(point);
+                if (removed && count - 1 <= LEAF_CAPACITY / 2) {
+                    merge();
+                }
+            } else {
+                removed = points.removeIf(p -> p.user == point.user);
+            }
+            if (removed) {
+                count--;
+            }
+            return removed;
+        }
+
+        /**
+         * Squared distance from a point to the nearest part of this cell's box.
+         */
+        double distanceSquared(Point point) {
+            double dx = gap(point.x, minX);
+            double dy = gap(point.y, minY);
+            double dz = gap(point.z, minZ);
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        private double gap(double value, double min) {
+            if (value < min) return min - value;
+            if (value > min + size) return value - (min + size);
+            return 0;
+        }
+
+        private int childIndex(Point point) {
+            double half = size / 2;
+            return (point.x >= minX + half ? 1 : 0) | (point.y >= minY + half ? 2 : 0) | (point.z >= minZ + half ? 4 : 0);
+        }
+
+        private void split() {
+            double half = size / 2;
+            children = new Node[8];
+            for (int i = 0; i < 8; i++) {
+                children[i] = new Node(minX + ((i & 1) != 0 ? half : 0), minY + ((i & 2) != 0 ? half : 0),
+                        minZ + ((i & 4) != 0 ? half : 0), half, depth + 1);
+            }
+            List<Point> moved = points;
+            points = null;
+            for (Point point : moved) {
+                // May split the child in turn when the points are tightly clustered
+                children[childIndex(point)].add(point);
+            }
+        }
+
+        private void merge() {
+            List<Point> merged = new ArrayList<>();
+            gather(merged);
+            children = null;
+            points = merged;
+        }
+
+        private void gather(List<Point> into) {
+            if (children == null) {
+                into.addAll(points);
+            } else {
+                for (Node child : children) {
+                    child.gather(into);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the bytes received on a connection into calls to its {@link ConnectionHandler}.
+ * Decoders deliver one message per call so that a handler may switch the connection's
+ * {@link WireProtocol} between two messages of the same read.
+ */
+interface InboundDecoder {
+
+    /**
+     * Decodes the next complete message, buffering an incomplete tail until more bytes arrive.
+     *
+     * @param in      A heap buffer in read mode.
+     * @param handler Receives the decoded message.
+     * @return {@code true} if a message was delivered, {@code false} if the buffer was used up first.
+     * @throws IOException If the input violates the protocol.
+     */
+    boolean decodeNext(ByteBuffer in, ConnectionHandler handler) throws IOException;
+}
@@ -0,0 +1,103 @@
+package org.zakaria;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Buckets are log-linear: every power of two is split into {@value #SUB_BUCKETS} equal buckets,
+ * so a percentile is off by at most an eighth of its value, whatever the range. Recording is a
+ * bucket increment plus two striped adders, safe from any number of threads at once; a snapshot
+ * taken meanwhile may miss the samples being recorded.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Enough buckets for every non-negative long
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Percentiles and totals of the durations recorded so far, in microseconds.
+     */
+    public record Snapshot(long count, double meanMicros, double p50Micros, double p90Micros,
+                           double p99Micros, double p999Micros, double maxMicros) {
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%.1fus, p50=%.1fus, p90=%.1fus, p99=%.1fus, p99.9=%.1fus, max=%.1fus",
+                    count, meanMicros, p50Micros, p90Micros, p99Micros, p999Micros, maxMicros);
+        }
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds; negative values count as zero.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        long maximum = max.get();
+        if (count == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0, 0);
+        }
+        return new Snapshot(count, sum.sum() / 1000.0 / count,
+                percentile(copy, count, 0.50, maximum), percentile(copy, count, 0.90, maximum),
+                percentile(copy, count, 0.99, maximum), percentile(copy, count, 0.999, maximum), maximum / 1000.0);
+    }
+
+    /**
+     * The upper end of the bucket holding the given fraction of the samples, in microseconds.
+     */
+    private static double percentile(long[] counts, long count, double fraction, long maximum) {
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maximum) / 1000.0;
+            }
+        }
+        return maximum / 1000.0;
+    }
+
+    /**
+     * Values below 2 * {@value #SUB_BUCKETS} get a bucket each; above that, the bucket is chosen by
+     * the position of the highest set bit and the {@value #SUB_BITS} bits below it.
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int group = bucket / SUB_BUCKETS;
+        long width = 1L << (group - 1);
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (group - 1);
+        return lower + width - 1;
+    }
+}
@@ -0,0 +1,80 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incrementally splits a byte stream into newline-terminated UTF-8 lines.
+ * Only a partial trailing line is buffered between calls, so an idle connection costs no buffer memory.
+ */
+class LineDecoder implements InboundDecoder {
+    static final int DEFAULT_MAX_LINE_LENGTH = 1 << 20;
+
+    private final int maxLineLength;
+    private byte[] partial;
+    private int partialLength;
+
+    LineDecoder() {
+        this(DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    @Override
+    public boolean decodeNext(ByteBuffer in, ConnectionHandler handler) throws IOException {
+        byte[] array = in.array();
+        int offset = in.arrayOffset();
+        int start = in.position();
+        int limit = in.limit();
+        int newline = -1;
+        for (int i = start; i < limit; i++) {
+            if (array[offset + i] == '\n') {
+                newline = i;
+                break;
+            }
+        }
+        if (newline < 0) {
+            append(array, offset + start, limit - start);
+            in.position(limit);
+            return false;
+        }
+        String line;
+        if (partialLength == 0) {
+            line = toLine(array, offset + start, newline - start);
+        } else {
+            append(array, offset + start, newline - start);
+            line = toLine(partial, 0, partialLength);
+            partial = null;
+            partialLength = 0;
+        }
+        in.position(newline + 1);
+        handler.onLine(line);
+        return true;
+    }
+
+    private void append(byte[] source, int from, int length) throws IOException {
+        if (partialLength + length > maxLineLength) {
+            throw new IOException("Line exceeds " + maxLineLength + " bytes");
+        }
+        if (length == 0) return;
+        if (partial == null) {
+            partial = new byte[Math.max(length, 256)];
+        } else if (partial.length < partialLength + length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        }
+        System.arraycopy(source, from, partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private static String toLine(byte[] bytes, int from, int length) {
+        // Accept CRLF terminators the same way BufferedReader.readLine() does
+        if (length > 0 && bytes[from + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, from, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,406 @@
+package org.zakaria;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless load generator: simulates many chat users against a running server and reports
+ * end-to-end delivery latency and throughput.
+ * <p>
+ * Every simulated user speaks the same protocol as the interactive clients. It sends its name
+ * first, as {@link Client} does, answers the latitude and longitude prompts of
+ * {@link SwingServerCoordinates}, then sends chat lines of a fixed size at a fixed rate, a share of
+ * them as {@code EVAL:} expressions for {@link ServerCalculator}. Each user runs on two virtual
+ * threads, one reading and one writing, so thousands of users cost little more than their sockets.
+ * <p>
+ * Chat lines carry the {@link System#nanoTime()} they were sent at, so every copy of a line another
+ * simulated user receives gives one delivery latency; evaluations are timed from request to
+ * {@code RESULT:}. Both are measured on this JVM's clock, so run the generator on the server's host,
+ * usually over loopback. Users connect during a ramp-up, send through a warm-up, and only then does
+ * measurement start. Configured with system properties:
+ * <ul>
+ *     <li>{@code messenger.load.host}, {@code messenger.load.port}: the server, {@code localhost:5000}.</li>
+ *     <li>{@code messenger.load.users}: simulated users, 100.</li>
+ *     <li>{@code messenger.load.rate}: chat lines per second each user sends, 1; 0 only connects.</li>
+ *     <li>{@code messenger.load.payload}: size of a chat line in characters, 100.</li>
+ *     <li>{@code messenger.load.evalRatio}: share of lines sent as {@code EVAL:}, 0.</li>
+ *     <li>{@code messenger.load.binary}: offer {@link WireProtocol#BINARY} first, false; only
+ *     {@link SwingServerCoordinates} accepts it.</li>
+ *     <li>{@code messenger.load.multicast}: offer {@link MulticastFanout#OFFER}, so that room broadcasts
+ *     arrive by multicast, false; the server needs {@code messenger.multicast.group}.</li>
+ *     <li>{@code messenger.load.rampSeconds}, {@code messenger.load.warmupSeconds},
+ *     {@code messenger.load.durationSeconds}: 5, 5 and 30.</li>
+ *     <li>{@code messenger.load.reportSeconds}: how often progress is printed, 5.</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("messenger.load.host", "localhost");
+    private static final int PORT = Integer.getInteger("messenger.load.port", 5000);
+    private static final int USERS = Math.max(1, Integer.getInteger("messenger.load.users", 100));
+    private static final double RATE = Double.parseDouble(System.getProperty("messenger.load.rate", "1"));
+    private static final int PAYLOAD = Math.max(0, Integer.getInteger("messenger.load.payload", 100));
+    private static final double EVAL_RATIO = Double.parseDouble(System.getProperty("messenger.load.evalRatio", "0"));
+    private static final boolean BINARY = Boolean.getBoolean("messenger.load.binary");
+    private static final boolean MULTICAST = Boolean.getBoolean("messenger.load.multicast");
+    private static final int RAMP_SECONDS = Integer.getInteger("messenger.load.rampSeconds", 5);
+    private static final int WARMUP_SECONDS = Integer.getInteger("messenger.load.warmupSeconds", 5);
+    private static final int DURATION_SECONDS = Math.max(1, Integer.getInteger("messenger.load.durationSeconds", 30));
+    private static final int REPORT_SECONDS = Math.max(1, Integer.getInteger("messenger.load.reportSeconds", 5));
+    // How long users have to join, and how long lines sent at the very end have to arrive
+    private static final long JOIN_TIMEOUT_SECONDS = 30;
+    private static final long DRAIN_MILLIS = 1000;
+
+    // Starts every line this run sends; lines replayed from an earlier run do not match it
+    private static final String MARKER = "@load" + Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36) + ":";
+    private static final String PADDING = "x".repeat(PAYLOAD);
+
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder evalsSent = new LongAdder();
+    private static final LongAdder results = new LongAdder();
+    private static final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private static final LatencyHistogram evalLatency = new LatencyHistogram();
+    private static final AtomicInteger joined = new AtomicInteger();
+    private static final AtomicInteger failed = new AtomicInteger();
+    private static final AtomicInteger disconnected = new AtomicInteger();
+    private static final LongAdder multicastLost = new LongAdder();
+    private static final AtomicBoolean errorShown = new AtomicBoolean();
+    // Lines sent from this moment on are measured; Long.MAX_VALUE during ramp-up and warm-up
+    private static volatile long measureFrom = Long.MAX_VALUE;
+    private static volatile boolean finished;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("Simulating " + USERS + " users against " + HOST + ":" + PORT + ", " + RATE
+                + " lines/s each, " + PAYLOAD + " characters, " + (EVAL_RATIO * 100) + "% EVAL, "
+                + (BINARY ? "binary" : "text") + " protocol" + (MULTICAST ? ", multicast" : ""));
+        long begin = System.nanoTime();
+        long rampNanos = TimeUnit.SECONDS.toNanos(RAMP_SECONDS);
+        long measureStart = begin + rampNanos + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+
+        List<SimulatedUser> users = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            SimulatedUser user = new SimulatedUser("load-" + i, end);
+            users.add(user);
+            // Spread the connections over the ramp-up rather than flooding the accept backlog
+            long connectAt = begin + rampNanos * i / USERS;
+            Thread.ofVirtual().name("load-user-" + i).start(() -> user.run(connectAt));
+        }
+
+        waitUntil(begin, measureStart);
+        measureFrom = System.nanoTime();
+        long sentBefore = sent.sum();
+        long deliveredBefore = delivered.sum();
+        System.out.println("Measuring for " + DURATION_SECONDS + "s with " + joined.get() + " users joined");
+        waitUntil(begin, end);
+        long sentDuring = sent.sum() - sentBefore;
+        long deliveredDuring = delivered.sum() - deliveredBefore;
+        long elapsed = Math.max(1, System.nanoTime() - measureFrom);
+        Thread.sleep(DRAIN_MILLIS);
+        finished = true;
+
+        double seconds = elapsed / 1e9;
+        System.out.println("RESULT users joined=" + joined.get() + ", failed=" + failed.get() + ", disconnected=" + disconnected.get());
+        System.out.printf("RESULT throughput sent=%.0f/s, delivered=%.0f/s%n", sentDuring / seconds, deliveredDuring / seconds);
+        System.out.println("RESULT delivery latency " + deliveryLatency.snapshot());
+        for (SimulatedUser user : users) {
+            if (user.multicast != null) multicastLost.add(user.multicast.getLost());
+        }
+        if (MULTICAST) {
+            System.out.println("RESULT multicast messages lost=" + multicastLost.sum());
+        }
+        if (evalsSent.sum() > 0) {
+            System.out.println("RESULT evals sent=" + evalsSent.sum() + ", answered=" + results.sum() + ", latency " + evalLatency.snapshot());
+        }
+        for (SimulatedUser user : users) {
+            user.close();
+        }
+    }
+
+    /**
+     * Sleeps until a deadline, printing progress every {@code messenger.load.reportSeconds}.
+     */
+    private static void waitUntil(long begin, long deadline) throws InterruptedException {
+        long reportNanos = TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+        long lastSent = sent.sum();
+        long lastDelivered = delivered.sum();
+        long lastReport = System.nanoTime();
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            long nextReport = lastReport + reportNanos;
+            TimeUnit.NANOSECONDS.sleep(Math.min(deadline, nextReport) - now);
+            now = System.nanoTime();
+            if (now >= nextReport) {
+                double seconds = (now - lastReport) / 1e9;
+                long sentNow = sent.sum();
+                long deliveredNow = delivered.sum();
+                System.out.printf("t=%ds joined=%d sent=%.0f/s delivered=%.0f/s%n", TimeUnit.NANOSECONDS.toSeconds(now - begin),
+                        joined.get(), (sentNow - lastSent) / seconds, (deliveredNow - lastDelivered) / seconds);
+                lastSent = sentNow;
+                lastDelivered = deliveredNow;
+                lastReport = now;
+            }
+        }
+    }
+
+    private static void fail(String userName, Exception e) {
+        failed.incrementAndGet();
+        // One message is enough to tell why; the count is in the results
+        if (errorShown.compareAndSet(false, true)) {
+            System.err.println("User " + userName + " could not join: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One simulated user: its connection, handshake and the chat lines it sends and receives.
+     */
+    private static class SimulatedUser {
+        private final String userName;
+        private final long end;
+        private final CountDownLatch joinedSignal = new CountDownLatch(1);
+        // When each unanswered EVAL was sent; results come back in order
+        private final Queue<Long> pendingEvals = new ConcurrentLinkedQueue<>();
+        // A lock rather than synchronized, which would pin the virtual thread while the write blocks
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile Socket socket;
+        private OutputStream out;
+        private DataInputStream in;
+        private volatile WireProtocol protocol = WireProtocol.TEXT;
+        private boolean awaitingProtocol = BINARY;
+        // Set once the server accepts the multicast offer
+        private volatile MulticastReceiver multicast;
+        // Whether the server asked for the username, which only the coordinates server does
+        private boolean prompted;
+
+        SimulatedUser(String userName, long end) {
+            this.userName = userName;
+            this.end = end;
+        }
+
+        void run(long connectAt) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(connectAt - System.nanoTime());
+                socket = new Socket(HOST, PORT);
+                socket.setTcpNoDelay(true);
+                out = socket.getOutputStream();
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                // The username goes first, unless binary framing or multicast has to be agreed on before it
+                if (BINARY) {
+                    send(Message.text(WireProtocol.BINARY_OFFER));
+                } else {
+                    if (MULTICAST) send(Message.text(MulticastFanout.OFFER));
+                    send(Message.text(userName));
+                }
+                Thread.ofVirtual().name("load-reader-" + userName).start(this::read);
+                if (!joinedSignal.await(JOIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IOException("no welcome within " + JOIN_TIMEOUT_SECONDS + "s");
+                }
+                joined.incrementAndGet();
+                if (RATE > 0) {
+                    chat();
+                }
+            } catch (IOException e) {
+                fail(userName, e);
+                close();
+            } catch (InterruptedException e) {
+                close();
+            }
+        }
+
+        /**
+         * Sends chat lines at the configured rate until the end of the run, starting at a random
+         * point of the first interval so the users do not all send at once.
+         */
+        private void chat() throws IOException, InterruptedException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long interval = (long) (1e9 / RATE);
+            long next = System.nanoTime() + random.nextLong(Math.max(1, interval));
+            while (next < end) {
+                TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+                long now = System.nanoTime();
+                if (random.nextDouble() < EVAL_RATIO) {
+                    // Fresh operands each time, so the server's expression cache does not answer every request
+                    String expression = random.nextInt(1000) + " * (" + random.nextInt(1000) + " + " + random.nextInt(1000) + ")";
+                    pendingEvals.add(now);
+                    send(Message.text("EVAL: " + expression));
+                    if (now >= measureFrom) evalsSent.increment();
+                } else {
+                    String head = MARKER + now + ":";
+                    send(Message.text(head + PADDING.substring(0, Math.max(0, PAYLOAD - head.length()))));
+                }
+                sent.increment();
+                // Fall behind rather than send a burst to catch up
+                next = Math.max(next + interval, now);
+            }
+        }
+
+        private void read() {
+            try {
+                while (true) {
+                    if (protocol == WireProtocol.BINARY) {
+                        receive(FrameDecoder.read(in));
+                    } else {
+                        String line = readLine();
+                        if (line == null) break;
+                        receive(MULTICAST ? Opcode.parseLine(line, Opcode.MULTICAST_GROUP, Opcode.MULTICAST_ROOM,
+                                Opcode.MULTICAST_RESEND) : Message.text(line));
+                    }
+                }
+                throw new IOException("connection closed by the server");
+            } catch (IOException e) {
+                if (!finished) {
+                    if (joinedSignal.getCount() > 0) {
+                        fail(userName, e);
+                    } else {
+                        disconnected.incrementAndGet();
+                    }
+                }
+                close();
+            }
+        }
+
+        private void receive(Message message) throws IOException {
+            switch (message.getOpcode()) {
+                case MULTICAST_GROUP:
+                    multicast = MulticastReceiver.open(message.getPayload(), this::receiveMulticast, this::sendQuietly);
+                    return;
+                case MULTICAST_ROOM:
+                    if (multicast != null) multicast.enterRoom(message.getPayload());
+                    return;
+                case MULTICAST_RESEND:
+                    if (multicast != null) multicast.resent(message.getPayload());
+                    return;
+                default:
+                    break;
+            }
+            String payload = message.getPayload();
+            int marker = payload.indexOf(MARKER);
+            if (marker >= 0) {
+                long sentAt = parseStamp(payload, marker + MARKER.length());
+                delivered.increment();
+                if (sentAt >= measureFrom) {
+                    deliveryLatency.record(System.nanoTime() - sentAt);
+                }
+            } else if (payload.startsWith("RESULT:")) {
+                Long sentAt = pendingEvals.poll();
+                results.increment();
+                if (sentAt != null && sentAt >= measureFrom) {
+                    evalLatency.record(System.nanoTime() - sentAt);
+                }
+            } else if (joinedSignal.getCount() > 0) {
+                handshake(payload);
+            }
+        }
+
+        /**
+         * Answers the server during the handshake, whichever server it is.
+         */
+        private void handshake(String payload) throws IOException {
+            if (awaitingProtocol) {
+                // Skip whatever precedes the answer to our protocol offer
+                if (payload.startsWith("PROTOCOL:")) {
+                    awaitingProtocol = false;
+                    if (payload.equals(WireProtocol.BINARY_OFFER)) protocol = WireProtocol.BINARY;
+                    if (MULTICAST) send(Message.text(MulticastFanout.OFFER));
+                    send(Message.text(userName));
+                }
+            } else if (payload.startsWith("Enter your username:")) {
+                prompted = true;
+            } else if (payload.startsWith("Enter your latitude:")) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                send(Message.text(String.valueOf(random.nextDouble(-60, 60))));
+            } else if (payload.startsWith("Enter your longitude:")) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                send(Message.text(String.valueOf(random.nextDouble(-180, 180))));
+                joinedSignal.countDown();
+            } else if (payload.startsWith("Welcome to the chat room") && !prompted) {
+                // Servers that do not prompt for the username do not ask for coordinates either
+                joinedSignal.countDown();
+            }
+        }
+
+        private static long parseStamp(String payload, int start) {
+            long stamp = 0;
+            for (int i = start; i < payload.length(); i++) {
+                char c = payload.charAt(i);
+                if (c < '0' || c > '9') break;
+                stamp = stamp * 10 + (c - '0');
+            }
+            return stamp;
+        }
+
+        /**
+         * Reads one legacy text line.
+         *
+         * @return The line without terminator, or null at end of stream.
+         */
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+                }
+                line.write(b);
+            }
+            String text = line.toString(StandardCharsets.UTF_8);
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+        }
+
+        private void send(Message message) throws IOException {
+            writeLock.lock();
+            try {
+                message.encode(protocol).writeTo(out);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Takes a room broadcast from the multicast receiver's thread.
+         */
+        private void receiveMulticast(Message message) {
+            try {
+                receive(message);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Sends a request on behalf of the multicast receiver; a failure shows up on the reader.
+         */
+        private void sendQuietly(Message message) {
+            try {
+                send(message);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (multicast != null) multicast.close();
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
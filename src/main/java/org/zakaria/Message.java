@@ -0,0 +1,68 @@
+package org.zakaria;
+
+/**
+ * An outgoing or incoming protocol message: an {@link Opcode} and a text payload.
+ * The wire encoding for each {@link WireProtocol} is computed at most once and cached,
+ * so a message broadcast to many clients is encoded once per protocol in use, not once per client.
+ */
+public final class Message {
+    private final Opcode opcode;
+    private final String payload;
+    private volatile EncodedMessage textEncoding;
+    private volatile EncodedMessage binaryEncoding;
+
+    private Message(Opcode opcode, String payload) {
+        this.opcode = opcode;
+        this.payload = payload;
+    }
+
+    public static Message of(Opcode opcode, String payload) {
+        return new Message(opcode, payload);
+    }
+
+    public static Message text(String payload) {
+        return new Message(Opcode.TEXT, payload);
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return The message as a legacy text-protocol line, without terminator.
+     */
+    public String toLine() {
+        return opcode.getTextPrefix() + payload;
+    }
+
+    /**
+     * Returns the wire encoding of this message, computing it on first use.
+     *
+     * @param protocol The protocol of the receiving connection.
+     * @return The encoded message.
+     */
+    EncodedMessage encode(WireProtocol protocol) {
+        // Racy single-check: concurrent callers may both encode, but always to equal bytes
+        if (protocol == WireProtocol.BINARY) {
+            EncodedMessage encoded = binaryEncoding;
+            if (encoded == null) {
+                binaryEncoding = encoded = EncodedMessage.frame(opcode, payload);
+            }
+            return encoded;
+        }
+        EncodedMessage encoded = textEncoding;
+        if (encoded == null) {
+            textEncoding = encoded = EncodedMessage.line(toLine());
+        }
+        return encoded;
+    }
+
+    @Override
+    public String toString() {
+        return opcode + ":" + payload;
+    }
+}
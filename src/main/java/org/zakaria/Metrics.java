@@ -0,0 +1,201 @@
+package org.zakaria;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide server telemetry: counters for connections, messages, bytes and evaluations,
+ * latency histograms for broadcast fan-out and evaluation time, and the outbound queue of every
+ * open connection.
+ * <p>
+ * Counters are {@link LongAdder}s and histograms are {@link LatencyHistogram}s, so recording never
+ * locks and threads updating the same metric do not contend on one cache line. Per-connection
+ * figures are not collected at all until someone asks: they are read from the connections' own
+ * {@link QueueStats}. Everything is published as the {@link MetricsMXBean} {@code org.zakaria:type=Metrics}
+ * unless {@code messenger.metrics.jmx} is {@code false}, and summarised by {@link #report()}.
+ */
+final class Metrics {
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder messagesIn = new LongAdder();
+    static final LongAdder messagesOut = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder broadcasts = new LongAdder();
+    static final LongAdder multicastDatagrams = new LongAdder();
+    static final LongAdder multicastResends = new LongAdder();
+    static final LongAdder evals = new LongAdder();
+    static final LongAdder evalsRejected = new LongAdder();
+    static final LongAdder evalsTimedOut = new LongAdder();
+    static final LongAdder evalErrors = new LongAdder();
+    static final LatencyHistogram broadcastFanOut = new LatencyHistogram();
+    static final LatencyHistogram evalTime = new LatencyHistogram();
+
+    private static final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+    private static final long startNanos = System.nanoTime();
+
+    static {
+        if (Boolean.parseBoolean(System.getProperty("messenger.metrics.jmx", "true"))) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), new ObjectName("org.zakaria:type=Metrics"));
+            } catch (JMException e) {
+                System.err.println("Error registering metrics MBean: " + e.getMessage());
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Records an accepted connection, whose queue is reported until {@link #closed(ClientConnection)}.
+     *
+     * @param connection The connection.
+     */
+    static void opened(ClientConnection connection) {
+        connectionsAccepted.increment();
+        connections.add(connection);
+    }
+
+    /**
+     * @param connection A connection passed to {@link #opened(ClientConnection)}.
+     */
+    static void closed(ClientConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * @return The outbound queue of every open connection, by remote address.
+     */
+    static Map<String, QueueStats> clientQueues() {
+        Map<String, QueueStats> queues = new TreeMap<>();
+        for (ClientConnection connection : connections) {
+            queues.put(connection.getRemoteAddress(), connection.getQueueStats());
+        }
+        return queues;
+    }
+
+    /**
+     * Summarises every metric in a few lines of text, as answered to {@code /stats}.
+     *
+     * @return The lines.
+     */
+    static List<String> report() {
+        long uptime = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+        int depth = 0;
+        int maxDepth = 0;
+        long dropped = 0;
+        Map<String, QueueStats> queues = clientQueues();
+        for (QueueStats stats : queues.values()) {
+            depth += stats.depth();
+            maxDepth = Math.max(maxDepth, stats.depth());
+            dropped += stats.dropped();
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("STATS uptime=" + uptime + "s, connections=" + queues.size() + ", accepted=" + connectionsAccepted.sum());
+        lines.add("STATS messages in=" + messagesIn.sum() + " (" + messagesIn.sum() / uptime + "/s), out="
+                + messagesOut.sum() + " (" + messagesOut.sum() / uptime + "/s), bytes in=" + bytesIn.sum()
+                + ", out=" + bytesOut.sum());
+        lines.add("STATS queues depth=" + depth + ", deepest=" + maxDepth + ", dropped=" + dropped);
+        lines.add("STATS broadcasts=" + broadcasts.sum() + ", fan-out " + broadcastFanOut.snapshot());
+        lines.add("STATS multicast datagrams=" + multicastDatagrams.sum() + ", resent=" + multicastResends.sum());
+        lines.add("STATS evals=" + evals.sum() + ", rejected=" + evalsRejected.sum() + ", timed out="
+                + evalsTimedOut.sum() + ", errors=" + evalErrors.sum() + ", time " + evalTime.snapshot());
+        return lines;
+    }
+
+    private static final class MXBean implements MetricsMXBean {
+        @Override
+        public long getUptimeSeconds() {
+            return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public long getConnectionsAccepted() {
+            return connectionsAccepted.sum();
+        }
+
+        @Override
+        public int getConnectionsOpen() {
+            return connections.size();
+        }
+
+        @Override
+        public long getMessagesIn() {
+            return messagesIn.sum();
+        }
+
+        @Override
+        public long getMessagesOut() {
+            return messagesOut.sum();
+        }
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        @Override
+        public long getBroadcasts() {
+            return broadcasts.sum();
+        }
+
+        @Override
+        public long getMulticastDatagrams() {
+            return multicastDatagrams.sum();
+        }
+
+        @Override
+        public long getMulticastResends() {
+            return multicastResends.sum();
+        }
+
+        @Override
+        public long getEvals() {
+            return evals.sum();
+        }
+
+        @Override
+        public long getEvalsRejected() {
+            return evalsRejected.sum();
+        }
+
+        @Override
+        public long getEvalsTimedOut() {
+            return evalsTimedOut.sum();
+        }
+
+        @Override
+        public long getEvalErrors() {
+            return evalErrors.sum();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getBroadcastFanOut() {
+            return broadcastFanOut.snapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getEvalTime() {
+            return evalTime.snapshot();
+        }
+
+        @Override
+        public Map<String, QueueStats> getClientQueues() {
+            return clientQueues();
+        }
+    }
+}
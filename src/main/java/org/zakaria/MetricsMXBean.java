@@ -0,0 +1,53 @@
+package org.zakaria;
+
+import java.util.Map;
+
+/**
+ * The server {@link Metrics} as seen through JMX, under {@code org.zakaria:type=Metrics}.
+ * Counters are totals since the server started.
+ */
+public interface MetricsMXBean {
+
+    long getUptimeSeconds();
+
+    long getConnectionsAccepted();
+
+    int getConnectionsOpen();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBroadcasts();
+
+    long getMulticastDatagrams();
+
+    long getMulticastResends();
+
+    long getEvals();
+
+    long getEvalsRejected();
+
+    long getEvalsTimedOut();
+
+    long getEvalErrors();
+
+    /**
+     * @return How long handing one broadcast to every recipient's queue takes.
+     */
+    LatencyHistogram.Snapshot getBroadcastFanOut();
+
+    /**
+     * @return How long script evaluations run, excluding the time spent queued.
+     */
+    LatencyHistogram.Snapshot getEvalTime();
+
+    /**
+     * @return The outbound queue of every open connection, by remote address.
+     */
+    Map<String, QueueStats> getClientQueues();
+}
@@ -0,0 +1,308 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers room broadcasts to opted-in clients as one UDP multicast datagram each, however many
+ * of them are in the room, instead of one TCP write per member. Enabled by setting
+ * {@code messenger.multicast.group} (e.g. {@code 239.255.42.99}); {@code messenger.multicast.port}
+ * (default 5099), {@code messenger.multicast.interface} (e.g. {@code lo} for tests on one host) and
+ * {@code messenger.multicast.ttl} (default 1, the local network) say where datagrams go.
+ * <p>
+ * A client opts in by sending {@link #OFFER} during its handshake, before its name, and is told the
+ * group with {@link Opcode#MULTICAST_GROUP}; clients that do not, or whose server has no group, keep
+ * getting everything over TCP. Every room has its own stream of sequence numbers, and each time an
+ * opted-in client enters a room it gets a {@link Opcode#MULTICAST_ROOM} with the stream and the first
+ * sequence number that concerns it. Datagrams carry the sender's member number so a client can skip
+ * its own lines, which TCP members never get either.
+ * <p>
+ * UDP may lose or reorder datagrams, so clients put them back in order and ask for the missing ones
+ * with {@link Opcode#MULTICAST_NACK}; each stream keeps its last {@code messenger.multicast.retain}
+ * (default 1024) messages to send again as {@link Opcode#MULTICAST_RESEND} over the client's
+ * connection. Idle streams send a heartbeat with their last sequence number every
+ * {@code messenger.multicast.heartbeatMillis} (default 1000), so a lost last message is noticed too.
+ * Messages longer than {@code messenger.multicast.maxDatagram} (default 1400 bytes, one Ethernet frame)
+ * go to the stream's clients as resends straight away. See {@link MulticastReceiver} for the client side.
+ * <p>
+ * A datagram is a type byte, then the server's session number, the stream, the sequence number, and for
+ * {@link #DATA} the sender's member number (0 for none), the opcode and the UTF-8 payload, all big-endian.
+ */
+public class MulticastFanout {
+    /**
+     * Line a client sends during its handshake to receive broadcasts by multicast.
+     */
+    public static final String OFFER = "MULTICAST:1";
+
+    static final byte DATA = 1;
+    static final byte HEARTBEAT = 2;
+    // Type, session, stream, sequence, sender and opcode
+    static final int HEADER_LENGTH = 1 + 4 + 4 + 8 + 4 + 1;
+    static final int MAX_DATAGRAM = Integer.getInteger("messenger.multicast.maxDatagram", 1400);
+    static final int RETAIN = Math.max(16, Integer.getInteger("messenger.multicast.retain", 1024));
+    static final int HEARTBEAT_MILLIS = Integer.getInteger("messenger.multicast.heartbeatMillis", 1000);
+
+    private final MulticastSocket socket;
+    private final InetAddress group;
+    private final int port;
+    // Tells this server's datagrams from those of an earlier run, or another server on the group
+    private final int session = ThreadLocalRandom.current().nextInt();
+    private final AtomicInteger nextMember = new AtomicInteger();
+    private final AtomicInteger nextStream = new AtomicInteger();
+    // Opted-in connection -> its member number
+    private final ConcurrentHashMap<ClientConnection, Integer> members = new ConcurrentHashMap<>();
+    // Stream number -> stream, for the heartbeat
+    private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param group            The multicast group.
+     * @param port             The port clients listen on.
+     * @param networkInterface The interface to send on, or null for the system's choice.
+     * @param ttl              How many routers datagrams may cross; 1 keeps them on the local network.
+     * @throws IOException If the socket cannot be set up.
+     */
+    public MulticastFanout(InetAddress group, int port, NetworkInterface networkInterface, int ttl) throws IOException {
+        this.group = group;
+        this.port = port;
+        socket = new MulticastSocket();
+        socket.setTimeToLive(ttl);
+        if (networkInterface != null) {
+            socket.setNetworkInterface(networkInterface);
+        }
+        Thread.ofPlatform().daemon().name("multicast-heartbeat").start(this::heartbeat);
+    }
+
+    /**
+     * Creates the fan-out configured by the {@code messenger.multicast.*} properties.
+     *
+     * @return The fan-out, or null when {@code messenger.multicast.group} is not set.
+     * @throws IOException If the group or interface is unknown, or the socket cannot be set up.
+     */
+    public static MulticastFanout fromSystemProperties() throws IOException {
+        String group = System.getProperty("messenger.multicast.group");
+        if (group == null) return null;
+        InetAddress address = InetAddress.getByName(group);
+        if (!address.isMulticastAddress()) {
+            throw new IOException(group + " is not a multicast address");
+        }
+        NetworkInterface networkInterface = networkInterface();
+        int port = Integer.getInteger("messenger.multicast.port", 5099);
+        MulticastFanout fanout = new MulticastFanout(address, port, networkInterface, Integer.getInteger("messenger.multicast.ttl", 1));
+        System.out.println("Multicasting broadcasts to " + group + ":" + port);
+        return fanout;
+    }
+
+    /**
+     * @return The interface named by {@code messenger.multicast.interface}, or null if none is.
+     * @throws IOException If there is no such interface.
+     */
+    static NetworkInterface networkInterface() throws IOException {
+        String name = System.getProperty("messenger.multicast.interface");
+        if (name == null) return null;
+        NetworkInterface networkInterface = NetworkInterface.getByName(name);
+        if (networkInterface == null) {
+            throw new IOException("No network interface " + name);
+        }
+        return networkInterface;
+    }
+
+    /**
+     * Answers a client's {@link #OFFER}: from now on, rooms it enters reach it by multicast.
+     *
+     * @param connection The client's connection, which has not entered a room yet.
+     */
+    public void subscribe(ClientConnection connection) {
+        int member = members.computeIfAbsent(connection, c -> nextMember.incrementAndGet());
+        connection.send(Message.of(Opcode.MULTICAST_GROUP, group.getHostAddress() + ":" + port + ":" + session + ":" + member));
+    }
+
+    /**
+     * @param connection A connection passed to {@link #subscribe(ClientConnection)}, now closed.
+     */
+    public void unsubscribe(ClientConnection connection) {
+        members.remove(connection);
+    }
+
+    boolean isSubscribed(ClientConnection connection) {
+        return members.containsKey(connection);
+    }
+
+    /**
+     * @return A new stream, for a new room.
+     */
+    Stream open() {
+        Stream stream = new Stream(nextStream.incrementAndGet());
+        streams.put(stream.id, stream);
+        return stream;
+    }
+
+    /**
+     * @param stream A stream whose room is gone.
+     */
+    void retire(Stream stream) {
+        streams.remove(stream.id);
+    }
+
+    /**
+     * Numbers a message in a room's stream and multicasts it, or sends it to each subscriber if it is
+     * too long for one datagram.
+     *
+     * @param stream      The room's stream.
+     * @param message     The message.
+     * @param sender      The connection the message came from, not to show it to, or null.
+     * @param subscribers The room's opted-in members.
+     */
+    void publish(Stream stream, Message message, ClientConnection sender, Set<ClientConnection> subscribers) {
+        int senderMember = sender == null ? 0 : members.getOrDefault(sender, 0);
+        byte[] payload = message.getPayload().getBytes(StandardCharsets.UTF_8);
+        // One lock per room keeps its datagrams in sequence order on the wire
+        synchronized (stream) {
+            long sequence = stream.retain(message, senderMember);
+            if (HEADER_LENGTH + payload.length > MAX_DATAGRAM) {
+                for (ClientConnection subscriber : subscribers) {
+                    subscriber.send(resend(stream, sequence, subscriber == sender ? null : message));
+                    Metrics.multicastResends.increment();
+                }
+                return;
+            }
+            ByteBuffer datagram = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+            datagram.put(DATA).putInt(session).putInt(stream.id).putLong(sequence).putInt(senderMember)
+                    .put((byte) message.getOpcode().getCode()).put(payload);
+            send(datagram.array());
+        }
+    }
+
+    /**
+     * Handles {@link Opcode#MULTICAST_NACK}: sends a client the messages it missed, over its connection.
+     *
+     * @param room       The client's room; requests about any other room's stream are ignored.
+     * @param connection The client's connection.
+     * @param request    {@code stream:from:to}.
+     */
+    public void resend(Rooms.Room room, ClientConnection connection, String request) {
+        Stream stream = room == null ? null : room.stream;
+        String[] fields = request.trim().split(":");
+        if (stream == null || fields.length != 3) return;
+        long from;
+        long to;
+        try {
+            if (Integer.parseInt(fields[0]) != stream.id) return;
+            from = Long.parseLong(fields[1]);
+            to = Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        int member = members.getOrDefault(connection, 0);
+        synchronized (stream) {
+            // Never more than the stream remembers, whatever was asked
+            from = Math.max(from, Math.max(1, stream.lastSequence - RETAIN + 1));
+            to = Math.min(to, stream.lastSequence);
+            for (long sequence = from; sequence <= to; sequence++) {
+                Stream.Entry entry = stream.get(sequence);
+                // A client's own lines, and those no longer kept, only fill the gap
+                Message message = entry == null || entry.sender == member ? null : entry.message;
+                connection.send(resend(stream, sequence, message));
+                Metrics.multicastResends.increment();
+            }
+        }
+    }
+
+    /**
+     * @return The first sequence number a client entering the stream's room now should deliver.
+     */
+    long nextSequence(Stream stream) {
+        synchronized (stream) {
+            return stream.lastSequence + 1;
+        }
+    }
+
+    /**
+     * Stops sending.
+     */
+    public void close() {
+        closed = true;
+        socket.close();
+    }
+
+    private static Message resend(Stream stream, long sequence, Message message) {
+        String resent = message == null
+                ? stream.id + ":" + sequence + ":0:"
+                : stream.id + ":" + sequence + ":" + message.getOpcode().getCode() + ":" + message.getPayload();
+        return Message.of(Opcode.MULTICAST_RESEND, resent);
+    }
+
+    private void send(byte[] datagram) {
+        try {
+            socket.send(new DatagramPacket(datagram, datagram.length, new InetSocketAddress(group, port)));
+            Metrics.multicastDatagrams.increment();
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Error sending multicast datagram: " + e.getMessage());
+            }
+        }
+    }
+
+    private void heartbeat() {
+        while (!closed) {
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Stream stream : streams.values()) {
+                synchronized (stream) {
+                    // Streams that sent nothing since the last beat; the others just showed where they are
+                    if (stream.lastSequence == 0 || now - stream.lastSent < HEARTBEAT_MILLIS * 1_000_000L) continue;
+                    ByteBuffer datagram = ByteBuffer.allocate(1 + 4 + 4 + 8);
+                    datagram.put(HEARTBEAT).putInt(session).putInt(stream.id).putLong(stream.lastSequence);
+                    send(datagram.array());
+                }
+            }
+        }
+    }
+
+    /**
+     * The numbered messages of one room, the last {@link #RETAIN} of them kept. Guarded by its own monitor.
+     */
+    static final class Stream {
+        private final int id;
+        private final Entry[] retained = new Entry[RETAIN];
+        private long lastSequence;
+        private long lastSent;
+
+        private Stream(int id) {
+            this.id = id;
+        }
+
+        private long retain(Message message, int sender) {
+            long sequence = ++lastSequence;
+            retained[(int) (sequence % RETAIN)] = new Entry(sequence, message, sender);
+            lastSent = System.nanoTime();
+            return sequence;
+        }
+
+        private Entry get(long sequence) {
+            Entry entry = retained[(int) (sequence % RETAIN)];
+            return entry != null && entry.sequence == sequence ? entry : null;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        private record Entry(long sequence, Message message, int sender) {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * The client side of {@link MulticastFanout}: receives the broadcasts of the client's room as
+ * multicast datagrams and hands them on in order, exactly as if they had come over the connection.
+ * <p>
+ * Datagrams of other rooms, other servers and the client's own lines are skipped. One that arrives
+ * ahead of its turn waits until the ones before it are in; those are asked for with
+ * {@link Opcode#MULTICAST_NACK} at once and again every {@code messenger.multicast.nackMillis}
+ * (default 100), and given up on after {@value #MAX_NACKS} tries so one lost message cannot hold up
+ * the room forever. The server's heartbeats reveal messages lost at the end of a burst.
+ * Opened from a {@link Opcode#MULTICAST_GROUP} and fed the connection's {@link Opcode#MULTICAST_ROOM}
+ * and {@link Opcode#MULTICAST_RESEND} messages; it delivers from its own thread.
+ */
+class MulticastReceiver {
+    static final int NACK_MILLIS = Integer.getInteger("messenger.multicast.nackMillis", 100);
+    static final int MAX_NACKS = 5;
+    // Largest range asked for at once, and most messages kept waiting for a gap to fill
+    private static final int MAX_PENDING = MulticastFanout.RETAIN;
+
+    private final MulticastSocket socket;
+    private final int session;
+    private final int member;
+    private final Consumer<Message> deliver;
+    private final Consumer<Message> send;
+    private volatile boolean closed;
+
+    // The client's room's stream and how far it has been delivered; guarded by this
+    private int stream = -1;
+    private long expected;
+    // The highest sequence number known to exist
+    private long highest;
+    // Sequence number -> message arrived ahead of its turn, or null for one to skip
+    private final TreeMap<Long, Message> pending = new TreeMap<>();
+    private int nacks;
+    private long lastNack;
+    private long lost;
+
+    private MulticastReceiver(MulticastSocket socket, int session, int member, Consumer<Message> deliver, Consumer<Message> send) {
+        this.socket = socket;
+        this.session = session;
+        this.member = member;
+        this.deliver = deliver;
+        this.send = send;
+    }
+
+    /**
+     * Joins the group a server named and starts receiving.
+     *
+     * @param group   The payload of the server's {@link Opcode#MULTICAST_GROUP}.
+     * @param deliver Takes the room's messages, in order.
+     * @param send    Sends a message to the server over the connection.
+     * @return The receiver.
+     * @throws IOException If the group cannot be joined.
+     */
+    static MulticastReceiver open(String group, Consumer<Message> deliver, Consumer<Message> send) throws IOException {
+        String[] fields = group.split(":");
+        if (fields.length != 4) {
+            throw new IOException("Invalid multicast group: " + group);
+        }
+        InetAddress address;
+        int port;
+        int session;
+        int member;
+        try {
+            address = InetAddress.getByName(fields[0]);
+            port = Integer.parseInt(fields[1]);
+            session = Integer.parseInt(fields[2]);
+            member = Integer.parseInt(fields[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid multicast group: " + group);
+        }
+        // Several clients on one host may listen on the same port; each gets every datagram
+        MulticastSocket socket = new MulticastSocket(port);
+        try {
+            socket.joinGroup(new InetSocketAddress(address, port), MulticastFanout.networkInterface());
+            socket.setSoTimeout(NACK_MILLIS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        MulticastReceiver receiver = new MulticastReceiver(socket, session, member, deliver, send);
+        Thread.ofPlatform().daemon().name("multicast-receiver").start(receiver::receive);
+        return receiver;
+    }
+
+    /**
+     * Handles {@link Opcode#MULTICAST_ROOM}: follows the stream of the room just entered.
+     *
+     * @param room {@code stream:firstSequence}.
+     */
+    synchronized void enterRoom(String room) {
+        String[] fields = room.split(":");
+        try {
+            stream = Integer.parseInt(fields[0]);
+            expected = Long.parseLong(fields[1]);
+        } catch (RuntimeException e) {
+            return;
+        }
+        highest = expected - 1;
+        pending.clear();
+        nacks = 0;
+        lastNack = 0;
+    }
+
+    /**
+     * Handles {@link Opcode#MULTICAST_RESEND}: a message asked for, or one too long for a datagram.
+     *
+     * @param resent {@code stream:sequence:code:payload}.
+     */
+    synchronized void resent(String resent) {
+        String[] fields = resent.split(":", 4);
+        if (fields.length != 4) return;
+        try {
+            if (Integer.parseInt(fields[0]) != stream) return;
+            int code = Integer.parseInt(fields[2]);
+            Opcode opcode = code == 0 ? null : Opcode.fromCode(code);
+            accept(Long.parseLong(fields[1]), opcode == null ? null : Message.of(opcode, fields[3]));
+        } catch (NumberFormatException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * @return How many messages were given up on.
+     */
+    synchronized long getLost() {
+        return lost;
+    }
+
+    /**
+     * Leaves the group.
+     */
+    void close() {
+        closed = true;
+        socket.close();
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!closed) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                handle(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+            } catch (SocketTimeoutException e) {
+                synchronized (this) {
+                    requestMissing();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Error receiving multicast: " + e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    private synchronized void handle(ByteBuffer datagram) {
+        if (datagram.remaining() < 1 + 4 + 4 + 8) return;
+        byte type = datagram.get();
+        if (datagram.getInt() != session || datagram.getInt() != stream) return;
+        long sequence = datagram.getLong();
+        if (type == MulticastFanout.HEARTBEAT) {
+            highest = Math.max(highest, sequence);
+            requestMissing();
+        } else if (type == MulticastFanout.DATA && datagram.remaining() >= 4 + 1) {
+            int sender = datagram.getInt();
+            Opcode opcode = Opcode.fromCode(datagram.get());
+            if (sender == member || opcode == null) {
+                // Fills its place without being shown
+                accept(sequence, null);
+            } else {
+                String payload = new String(datagram.array(), datagram.arrayOffset() + datagram.position(),
+                        datagram.remaining(), StandardCharsets.UTF_8);
+                accept(sequence, Message.of(opcode, payload));
+            }
+        }
+    }
+
+    /**
+     * Delivers a message if it is next, along with any waiting after it, or keeps it until it is.
+     */
+    private void accept(long sequence, Message message) {
+        if (sequence < expected || pending.containsKey(sequence)) return;
+        highest = Math.max(highest, sequence);
+        if (sequence > expected) {
+            pending.put(sequence, message);
+            if (pending.size() > MAX_PENDING) {
+                // Too far behind to catch up; skip to what is here
+                giveUp();
+            } else {
+                requestMissing();
+            }
+            return;
+        }
+        if (message != null) deliver.accept(message);
+        expected++;
+        drain();
+    }
+
+    /**
+     * Delivers the waiting messages that are next in turn.
+     */
+    private void drain() {
+        Map.Entry<Long, Message> next;
+        while ((next = pending.firstEntry()) != null && next.getKey() == expected) {
+            pending.pollFirstEntry();
+            if (next.getValue() != null) deliver.accept(next.getValue());
+            expected++;
+        }
+        nacks = 0;
+        lastNack = 0;
+    }
+
+    /**
+     * Asks for the gap before the first waiting message, or before the highest known one, unless
+     * it was just asked for; gives it up after {@value #MAX_NACKS} tries.
+     */
+    private void requestMissing() {
+        if (stream < 0 || expected > highest) return;
+        long now = System.nanoTime();
+        if (lastNack != 0 && now - lastNack < NACK_MILLIS * 1_000_000L) return;
+        if (nacks >= MAX_NACKS) {
+            giveUp();
+            return;
+        }
+        long to = pending.isEmpty() ? highest : pending.firstKey() - 1;
+        to = Math.min(to, expected + MAX_PENDING - 1);
+        send.accept(Message.of(Opcode.MULTICAST_NACK, stream + ":" + expected + ":" + to));
+        nacks++;
+        lastNack = now;
+    }
+
+    private void giveUp() {
+        long resume = pending.isEmpty() ? highest + 1 : pending.firstKey();
+        lost += resume - expected;
+        System.err.println("Multicast messages " + expected + "-" + (resume - 1) + " were lost");
+        expected = resume;
+        drain();
+    }
+}
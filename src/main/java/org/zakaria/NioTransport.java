@@ -0,0 +1,403 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Non-blocking transport built on {@link Selector}: the calling thread accepts connections and
+ * hands them round-robin to a fixed number of event-loop threads, each multiplexing many channels.
+ * A connection costs a channel, a small state object and whatever output is still pending,
+ * instead of a whole thread and its stack.
+ */
+public class NioTransport implements ChatTransport {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int ACCEPT_BACKLOG = 1024;
+    // How long to wait before accepting again after accept() failed, e.g. for want of file descriptors
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final EventLoop[] loops;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean closed;
+
+    /**
+     * @param threads The number of event-loop threads.
+     */
+    public NioTransport(int threads) {
+        this.loops = new EventLoop[Math.max(1, threads)];
+    }
+
+    @Override
+    public void serve(int port, Function<ClientConnection, ConnectionHandler> factory) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(factory);
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            loops[i].thread = thread;
+            thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            int next = 0;
+            // Accepting stays blocking; only the accepted channels are multiplexed
+            while (!closed) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // Running out of file descriptors or a client aborting mid-accept is not the server's end
+                    System.err.println("Error accepting connection: " + e.getMessage());
+                    try {
+                        Thread.sleep(ACCEPT_RETRY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    continue;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (ClosedChannelException e) {
+            // close() shut the listening channel down; anything else is a real failure
+            if (!closed) throw e;
+        } finally {
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+            terminated.countDown();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ServerSocketChannel channel = serverChannel;
+        if (channel == null) return;
+        try {
+            channel.close();
+            terminated.await();
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A selector thread servicing a subset of the connections.
+     */
+    private static class EventLoop implements Runnable {
+        private final Function<ClientConnection, ConnectionHandler> factory;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakenUp = new AtomicBoolean();
+        // Shared by every connection of this loop: reads never outlive a single select pass
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // Scratch list for assembling write batches, likewise only used on this loop's thread
+        private final List<EncodedMessage> batch = new ArrayList<>();
+        private Thread thread;
+        private volatile boolean running = true;
+
+        EventLoop(Function<ClientConnection, ConnectionHandler> factory) throws IOException {
+            this.factory = factory;
+            this.selector = Selector.open();
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Runs a task on this loop's thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inEventLoop() && wakenUp.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                NioConnection connection = null;
+                try {
+                    channel.configureBlocking(false);
+                    TransportSettings.apply(channel);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    connection = new NioConnection(this, channel, key);
+                    key.attach(connection);
+                    Metrics.opened(connection);
+                    connection.open(factory.apply(connection));
+                } catch (IOException | RuntimeException e) {
+                    // Only this client is dropped; the loop and its other connections carry on
+                    System.err.println("Error registering client channel: " + e.getMessage());
+                    if (connection != null) {
+                        connection.closeNow();
+                        return;
+                    }
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Nothing left to release
+                    }
+                }
+            });
+        }
+
+        /**
+         * Closes every connection of this loop, running their handlers' onClose(), then stops the loop.
+         */
+        void shutdown() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioConnection connection) {
+                        connection.closeNow();
+                    }
+                }
+                running = false;
+            });
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    wakenUp.set(false);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) continue;
+                        if (key.isWritable()) connection.flush();
+                        if (key.isValid() && key.isReadable()) connection.read(readBuffer);
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    System.err.println("Unexpected event loop error: " + e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing selector: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A client connection serviced by an {@link EventLoop}.
+     */
+    private static class NioConnection implements ClientConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String remoteAddress;
+        private InboundDecoder decoder = WireProtocol.TEXT.newDecoder();
+        private final OutboundQueue queue = new OutboundQueue();
+        // The batch currently being written, kept across selects when the socket buffer fills up
+        private ByteBuffer[] pending;
+        private int pendingOffset;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final Runnable flushTask = () -> {
+            flushScheduled.set(false);
+            flush();
+        };
+        private ConnectionHandler handler;
+        private volatile boolean closing;
+        private boolean closed;
+
+        NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+        }
+
+        void open(ConnectionHandler handler) {
+            this.handler = handler;
+            try {
+                handler.onOpen();
+            } catch (RuntimeException e) {
+                System.err.println("Error handling " + this + ": " + e);
+                closeNow();
+            }
+        }
+
+        @Override
+        public void send(Message message) {
+            if (closing) return;
+            if (!queue.offer(message)) {
+                System.err.println("Disconnecting slow client " + this + ": outbound queue full");
+                closing = true;
+                loop.execute(this::closeNow);
+                return;
+            }
+            scheduleFlush();
+        }
+
+        @Override
+        public QueueStats getQueueStats() {
+            return queue.stats();
+        }
+
+        @Override
+        public void setProtocol(WireProtocol protocol) {
+            queue.setProtocol(protocol);
+            decoder = protocol.newDecoder();
+        }
+
+        @Override
+        public WireProtocol getProtocol() {
+            return queue.getProtocol();
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            scheduleFlush();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        /**
+         * Defers writing to the end of the current loop iteration, so that everything sent
+         * while handling one event leaves in as few writes as possible.
+         */
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(flushTask);
+            }
+        }
+
+        void read(ByteBuffer readBuffer) {
+            try {
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read < 0) {
+                    closeNow();
+                    return;
+                }
+                readBuffer.flip();
+                Metrics.bytesIn.add(read);
+                // Re-read the decoder field each time: a handler may switch protocols mid-buffer
+                while (!closing && readBuffer.hasRemaining() && decoder.decodeNext(readBuffer, handler)) {
+                    Metrics.messagesIn.increment();
+                }
+            } catch (IOException e) {
+                System.err.println("Error in client communication: " + e.getMessage());
+                closeNow();
+            } catch (RuntimeException e) {
+                System.err.println("Error handling " + this + ": " + e);
+                closeNow();
+            }
+        }
+
+        void flush() {
+            if (closed) return;
+            try {
+                while (true) {
+                    if (pending == null && !nextBatch()) break;
+                    // One gathering write per batch instead of one write per message
+                    channel.write(pending, pendingOffset, pending.length - pendingOffset);
+                    while (pendingOffset < pending.length && !pending[pendingOffset].hasRemaining()) {
+                        pendingOffset++;
+                    }
+                    if (pendingOffset < pending.length) {
+                        // Socket buffer is full: resume once the channel becomes writable
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pending = null;
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing) closeNow();
+            } catch (IOException e) {
+                if (!(e instanceof ClosedChannelException)) {
+                    System.err.println("Error writing to " + this + ": " + e.getMessage());
+                }
+                closeNow();
+            }
+        }
+
+        /**
+         * Takes as many queued messages as fit in the write budget as the next pending batch.
+         *
+         * @return {@code false} if nothing is queued.
+         */
+        private boolean nextBatch() {
+            List<EncodedMessage> batch = loop.batch;
+            EncodedMessage first = queue.poll();
+            if (first == null) return false;
+            batch.add(first);
+            int bytes = first.length() + queue.drainTo(batch, TransportSettings.WRITE_BATCH_BYTES - first.length());
+            Metrics.messagesOut.add(batch.size());
+            Metrics.bytesOut.add(bytes);
+            pending = new ByteBuffer[batch.size()];
+            for (int i = 0; i < pending.length; i++) {
+                pending[i] = batch.get(i).buffer();
+            }
+            pendingOffset = 0;
+            batch.clear();
+            return true;
+        }
+
+        private void closeNow() {
+            if (closed) return;
+            closed = true;
+            closing = true;
+            Metrics.closed(this);
+            key.cancel();
+            queue.clear();
+            pending = null;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing " + this + ": " + e.getMessage());
+            }
+            if (handler != null) {
+                try {
+                    handler.onClose();
+                } catch (RuntimeException e) {
+                    System.err.println("Error handling close of " + this + ": " + e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "NioConnection[" + remoteAddress + "]";
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.zakaria;
+
+/**
+ * Message types of the chat protocol. In {@link WireProtocol#BINARY} a message travels as its
+ * {@link #getCode() code}; in the legacy {@link WireProtocol#TEXT} protocol it is recognised by its
+ * {@link #getTextPrefix() text prefix} instead.
+ */
+public enum Opcode {
+    /**
+     * A line of chat or a server notice.
+     */
+    TEXT(0x01, ""),
+
+    /**
+     * The server asks the user for input; the payload is the question.
+     */
+    PROMPT(0x02, ""),
+
+    /**
+     * Comma-separated names of the connected users.
+     */
+    USER_LIST(0x03, "USER_LIST:"),
+
+    /**
+     * JSON name and coordinates of a user, answering {@link #GET_COORDINATES}.
+     */
+    USER_COORDINATES(0x04, "USER_COORDINATES:"),
+
+    /**
+     * Full user list at a presence version: {@code version:name,name,...}.
+     * See {@link PresenceTracker}.
+     */
+    USER_SNAPSHOT(0x05, "USER_SNAPSHOT:"),
+
+    /**
+     * Presence changes since the previous version: {@code version:+joined,-left,...}.
+     * See {@link PresenceTracker}.
+     */
+    USER_DELTA(0x06, "USER_DELTA:"),
+
+    /**
+     * JSON array of users near a position, nearest first, answering {@link #FIND_NEAR} and
+     * {@link #FIND_NEAREST}. Each entry is a user's name and coordinates plus its {@code distanceKm}.
+     */
+    NEARBY_USERS(0x07, "NEARBY_USERS:"),
+
+    /**
+     * Asks the server to persist its user data.
+     */
+    SAVE(0x10, "/save"),
+
+    /**
+     * Asks for the coordinates of the user named in the payload.
+     */
+    GET_COORDINATES(0x11, "/get "),
+
+    /**
+     * Asks for the outbound queue statistics of every user.
+     */
+    QUEUES(0x12, "/queues"),
+
+    /**
+     * Asks for a fresh {@link #USER_SNAPSHOT} after a client missed a presence version.
+     */
+    SYNC_USERS(0x13, "/users"),
+
+    /**
+     * Asks for the users within the radius in kilometres given in the payload, around the sender.
+     */
+    FIND_NEAR(0x14, "/near "),
+
+    /**
+     * Asks for the number of users given in the payload that are closest to the sender.
+     */
+    FIND_NEAREST(0x15, "/nearest "),
+
+    /**
+     * Asks for the most recent chat messages; the payload is how many, or empty for the default.
+     */
+    HISTORY(0x16, "/history"),
+
+    /**
+     * Asks for the server's {@link Metrics} summary.
+     */
+    STATS(0x17, "/stats"),
+
+    /**
+     * Moves the sender to the room named in the payload. See {@link Rooms}.
+     */
+    JOIN_ROOM(0x18, "/join"),
+
+    /**
+     * Moves the sender back to the default room; the payload optionally names the room being left.
+     */
+    LEAVE_ROOM(0x19, "/leave"),
+
+    /**
+     * Sends a private message: the recipient's name, a space, then the text. See {@link DirectMessages}.
+     */
+    DIRECT_MESSAGE(0x1A, "/msg "),
+
+    /**
+     * A private message for this client: {@code sender:text}.
+     */
+    PRIVATE_MESSAGE(0x1B, "PRIVATE_MESSAGE:"),
+
+    /**
+     * Whether a private message reached its recipient: {@code user:delivered} or {@code user:offline}.
+     */
+    PRIVATE_STATUS(0x1C, "PRIVATE_STATUS:"),
+
+    /**
+     * Accepts a client's {@link MulticastFanout#OFFER}: {@code group:port:session:member}, where to
+     * listen and how this client's own broadcasts are marked. See {@link MulticastFanout}.
+     */
+    MULTICAST_GROUP(0x1D, "MULTICAST_GROUP:"),
+
+    /**
+     * The multicast stream of the room this client just entered: {@code stream:firstSequence}.
+     */
+    MULTICAST_ROOM(0x1E, "MULTICAST_ROOM:"),
+
+    /**
+     * Asks for multicast messages the client missed: {@code stream:from:to}, sequence numbers inclusive.
+     */
+    MULTICAST_NACK(0x1F, "/nack "),
+
+    /**
+     * A multicast message sent again over the connection: {@code stream:sequence:code:payload}, where
+     * code is the message's opcode, or 0 for a sequence number the client has nothing to show for.
+     */
+    MULTICAST_RESEND(0x20, "MULTICAST_RESEND:");
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+        }
+    }
+
+    private final int code;
+    private final String textPrefix;
+
+    Opcode(int code, String textPrefix) {
+        this.code = code;
+        this.textPrefix = textPrefix;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getTextPrefix() {
+        return textPrefix;
+    }
+
+    /**
+     * Whether a legacy text line is this message type. A command prefix must be the line's whole
+     * first word, so "/joinery" or "/leaves are falling" is chat rather than {@code /join} or
+     * {@code /leave}; prefixes ending in a space or not starting with a slash only need to lead the line.
+     *
+     * @param line The received line.
+     * @return Whether the line starts with this opcode's text prefix as a word.
+     */
+    public boolean matches(String line) {
+        if (!line.startsWith(textPrefix)) return false;
+        if (!textPrefix.startsWith("/") || textPrefix.endsWith(" ")) return true;
+        return line.length() == textPrefix.length() || line.charAt(textPrefix.length()) == ' ';
+    }
+
+    /**
+     * Looks an opcode up by its wire code.
+     *
+     * @param code The code, 0-255.
+     * @return The opcode, or {@code null} if the code is unknown.
+     */
+    public static Opcode fromCode(int code) {
+        return BY_CODE[code & 0xFF];
+    }
+
+    /**
+     * Maps a legacy text line onto a message: the first opcode that {@link #matches(String)} the line
+     * wins, and the prefix is stripped from the payload. Lines matching none are {@link #TEXT}.
+     *
+     * @param line       The received line.
+     * @param candidates The prefixed opcodes that may appear in this direction.
+     * @return The equivalent message.
+     */
+    public static Message parseLine(String line, Opcode... candidates) {
+        for (Opcode opcode : candidates) {
+            if (opcode.matches(line)) {
+                return Message.of(opcode, line.substring(opcode.textPrefix.length()));
+            }
+        }
+        return Message.text(line);
+    }
+}
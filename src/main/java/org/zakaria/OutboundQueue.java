@@ -0,0 +1,207 @@
+package org.zakaria;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of messages waiting to be written to one client.
+ * Senders only ever enqueue, so a slow reader delays nobody but itself; what happens
+ * once it falls {@code capacity} messages behind is decided by the {@link OverflowPolicy}.
+ * Capacity defaults to the {@code messenger.outbound.capacity} system property.
+ */
+class OutboundQueue {
+    static final int DEFAULT_CAPACITY = Integer.getInteger("messenger.outbound.capacity", 1024);
+    static final OverflowPolicy DEFAULT_POLICY = OverflowPolicy.fromSystemProperties();
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<EncodedMessage> messages = new ArrayDeque<>();
+    private int highWatermark;
+    private long sent;
+    private long dropped;
+    private boolean closed;
+    private WireProtocol protocol = WireProtocol.TEXT;
+
+    OutboundQueue() {
+        this(DEFAULT_CAPACITY, DEFAULT_POLICY);
+    }
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Enqueues a message, encoded for the current protocol, applying the overflow policy if the queue is full.
+     *
+     * @param message The message to enqueue.
+     * @return {@code false} if the client must be disconnected, {@code true} otherwise
+     *         (even if a message was dropped, or the queue is already closed).
+     */
+    boolean offer(Message message) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            // Encoding under the lock orders every message against a protocol switch
+            EncodedMessage encoded = message.encode(protocol);
+            if (messages.size() >= capacity) {
+                dropped++;
+                switch (policy) {
+                    case DROP_NEWEST:
+                        return true;
+                    case DISCONNECT:
+                        return false;
+                    case DROP_OLDEST:
+                    default:
+                        messages.pollFirst();
+                }
+            }
+            messages.addLast(encoded);
+            highWatermark = Math.max(highWatermark, messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the encoding of every message offered from now on.
+     * Messages already queued keep the encoding they were queued with.
+     *
+     * @param protocol The new protocol.
+     */
+    void setProtocol(WireProtocol protocol) {
+        lock.lock();
+        try {
+            this.protocol = protocol;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    WireProtocol getProtocol() {
+        lock.lock();
+        try {
+            return protocol;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The next message, or {@code null} if the queue is empty.
+     */
+    EncodedMessage poll() {
+        lock.lock();
+        try {
+            EncodedMessage message = messages.pollFirst();
+            if (message != null) sent++;
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next message.
+     *
+     * @return The next message, or {@code null} once the queue is closed and drained.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    EncodedMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty()) {
+                if (closed) return null;
+                notEmpty.await();
+            }
+            sent++;
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves queued messages into a batch, in order, for as long as they fit in the byte budget.
+     *
+     * @param batch     Receives the drained messages.
+     * @param maxBytes  The byte budget.
+     * @return The number of bytes drained.
+     */
+    int drainTo(Collection<EncodedMessage> batch, int maxBytes) {
+        lock.lock();
+        try {
+            int bytes = 0;
+            EncodedMessage next;
+            while ((next = messages.peekFirst()) != null && bytes + next.length() <= maxBytes) {
+                batch.add(messages.pollFirst());
+                bytes += next.length();
+                sent++;
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to the given time for the queue to become non-empty.
+     *
+     * @param nanos The longest time to wait.
+     * @return {@code true} if messages are queued.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    boolean awaitMessages(long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return !messages.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting messages. Messages already queued can still be drained.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards every queued message and stops accepting new ones.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    QueueStats stats() {
+        lock.lock();
+        try {
+            return new QueueStats(messages.size(), highWatermark, sent, dropped);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
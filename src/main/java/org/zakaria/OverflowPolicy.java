@@ -0,0 +1,37 @@
+package org.zakaria;
+
+/**
+ * What a client's outbound queue does when a message arrives while it is full,
+ * i.e. when the client reads slower than the room talks.
+ * Selected with the {@code messenger.outbound.policy} system property.
+ */
+public enum OverflowPolicy {
+    /**
+     * Discard the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new message and keep what is already queued.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Disconnect the slow client.
+     */
+    DISCONNECT;
+
+    /**
+     * Reads the policy from the {@code messenger.outbound.policy} system property.
+     *
+     * @return The configured policy, {@link #DROP_OLDEST} if unset.
+     */
+    public static OverflowPolicy fromSystemProperties() {
+        String value = System.getProperty("messenger.outbound.policy", "drop_oldest").trim();
+        try {
+            return valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown outbound overflow policy: " + value);
+        }
+    }
+}
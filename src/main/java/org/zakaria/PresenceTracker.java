@@ -0,0 +1,165 @@
+package org.zakaria;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps every client's view of the user list current without rebroadcasting the whole list.
+ * <p>
+ * A client receives one {@link Opcode#USER_SNAPSHOT} ({@code version:name,name,...}) when it joins.
+ * After that it only receives {@link Opcode#USER_DELTA} messages ({@code version:+joined,-left,...}),
+ * each bumping the version by exactly one. Joins and leaves arriving within the coalescing window
+ * ({@code messenger.presence.coalesceMillis}, default 50) are merged into one delta, and a join and
+ * leave of the same name inside a window cancel out. A client that sees a version gap asks for a new
+ * snapshot with {@link Opcode#SYNC_USERS}.
+ */
+public class PresenceTracker {
+    static final long DEFAULT_COALESCE_MILLIS = Long.getLong("messenger.presence.coalesceMillis", 50);
+
+    private final long coalesceMillis;
+    // Published state: what a client at the current version believes, name -> occurrences
+    private final Map<String, Integer> members = new LinkedHashMap<>();
+    // Net changes not published yet, name -> joins minus leaves, in order of first change
+    private final Map<String, Integer> pending = new LinkedHashMap<>();
+    private final Map<ClientConnection, String> subscribers = new HashMap<>();
+    private long version;
+    private boolean flushScheduled;
+
+    public PresenceTracker() {
+        this(DEFAULT_COALESCE_MILLIS);
+    }
+
+    /**
+     * @param coalesceMillis How long changes are collected before being published; 0 publishes immediately.
+     */
+    public PresenceTracker(long coalesceMillis) {
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    /**
+     * Publishes the coalesced changes of every tracker, so a server with many rooms still has one thread.
+     */
+    private static final class Scheduler {
+        static final ScheduledExecutorService INSTANCE =
+                Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("presence").factory());
+    }
+
+    /**
+     * Registers a user: the connection gets a snapshot now and every delta from then on,
+     * starting with the one announcing its own arrival.
+     *
+     * @param connection The user's connection.
+     * @param userName   The user's name.
+     */
+    public synchronized void join(ClientConnection connection, String userName) {
+        subscribers.put(connection, userName);
+        connection.send(snapshot());
+        record(userName, 1);
+    }
+
+    /**
+     * Unregisters a user, announcing the departure to everyone else.
+     *
+     * @param connection The user's connection.
+     */
+    public synchronized void leave(ClientConnection connection) {
+        String userName = subscribers.remove(connection);
+        if (userName != null) {
+            record(userName, -1);
+        }
+    }
+
+    /**
+     * Lists a user who receives nothing from this tracker, such as one connected to another server.
+     *
+     * @param userName The user's name.
+     */
+    public synchronized void add(String userName) {
+        record(userName, 1);
+    }
+
+    /**
+     * Removes a user listed by {@link #add(String)}.
+     *
+     * @param userName The user's name.
+     */
+    public synchronized void remove(String userName) {
+        record(userName, -1);
+    }
+
+    /**
+     * Sends a fresh snapshot, e.g. to a client that detected a version gap.
+     *
+     * @param connection The connection to resynchronise.
+     */
+    public synchronized void resync(ClientConnection connection) {
+        connection.send(snapshot());
+    }
+
+    /**
+     * @return The number of registered users.
+     */
+    public synchronized int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * Builds the snapshot message for the published state.
+     */
+    synchronized Message snapshot() {
+        StringBuilder payload = new StringBuilder().append(version).append(':');
+        String separator = "";
+        for (Map.Entry<String, Integer> member : members.entrySet()) {
+            for (int i = 0; i < member.getValue(); i++) {
+                payload.append(separator).append(member.getKey());
+                separator = ",";
+            }
+        }
+        return Message.of(Opcode.USER_SNAPSHOT, payload.toString());
+    }
+
+    private void record(String userName, int change) {
+        // A change undone within the same window is never published
+        pending.merge(userName, change, (before, delta) -> before + delta == 0 ? null : before + delta);
+        if (coalesceMillis <= 0) {
+            publish();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            Scheduler.INSTANCE.schedule(this::publishScheduled, coalesceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void publishScheduled() {
+        flushScheduled = false;
+        publish();
+    }
+
+    /**
+     * Applies the pending changes to the published state and sends them as one delta.
+     */
+    private void publish() {
+        if (pending.isEmpty()) return;
+        version++;
+        StringBuilder payload = new StringBuilder().append(version).append(':');
+        String separator = "";
+        for (Map.Entry<String, Integer> change : pending.entrySet()) {
+            String userName = change.getKey();
+            int count = change.getValue();
+            members.merge(userName, count, (before, delta) -> before + delta > 0 ? before + delta : null);
+            for (int i = 0; i < Math.abs(count); i++) {
+                payload.append(separator).append(count > 0 ? '+' : '-').append(userName);
+                separator = ",";
+            }
+        }
+        pending.clear();
+        // Encoded once, then shared by every subscriber
+        Message delta = Message.of(Opcode.USER_DELTA, payload.toString());
+        for (ClientConnection subscriber : subscribers.keySet()) {
+            subscriber.send(delta);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.zakaria;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side of {@link PresenceTracker}: applies user snapshots and deltas to a list model,
+ * and asks for a new snapshot whenever a delta does not follow the version it holds.
+ * All methods must be called on the Event Dispatch Thread.
+ */
+class PresenceView {
+    private final UserListModel model;
+    private final Runnable requestSnapshot;
+    private long version = -1;
+    private boolean resyncRequested;
+
+    /**
+     * @param model           The list model showing the connected users.
+     * @param requestSnapshot Sends {@link Opcode#SYNC_USERS} to the server.
+     */
+    PresenceView(UserListModel model, Runnable requestSnapshot) {
+        this.model = model;
+        this.requestSnapshot = requestSnapshot;
+    }
+
+    /**
+     * Replaces the list with a snapshot ({@code version:name,name,...}).
+     */
+    void applySnapshot(String payload) {
+        int colon = payload.indexOf(':');
+        version = Long.parseLong(payload.substring(0, colon));
+        resyncRequested = false;
+        model.setAll(split(payload.substring(colon + 1)));
+    }
+
+    /**
+     * Applies a delta ({@code version:+joined,-left,...}) if it is the next version.
+     */
+    void applyDelta(String payload) {
+        int colon = payload.indexOf(':');
+        long deltaVersion = Long.parseLong(payload.substring(0, colon));
+        if (deltaVersion != version + 1) {
+            // Missed or reordered update: only a full snapshot can repair the list
+            if (deltaVersion > version && !resyncRequested) {
+                resyncRequested = true;
+                requestSnapshot.run();
+            }
+            return;
+        }
+        version = deltaVersion;
+        // Applied as one update, however many users joined or left
+        Map<String, Integer> changes = new HashMap<>();
+        for (String change : payload.substring(colon + 1).split(",")) {
+            if (change.isEmpty()) continue;
+            changes.merge(change.substring(1), change.charAt(0) == '+' ? 1 : -1, Integer::sum);
+        }
+        model.apply(changes);
+    }
+
+    /**
+     * Replaces the list with a legacy, unversioned {@code USER_LIST} payload.
+     */
+    void applyLegacyList(String users) {
+        version = -1;
+        model.setAll(split(users));
+    }
+
+    private static List<String> split(String users) {
+        return users.isEmpty() ? List.of() : Arrays.asList(users.split(","));
+    }
+}
@@ -0,0 +1,122 @@
+package org.zakaria;
+
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+import java.awt.BorderLayout;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The private conversations of a Swing client, one window per correspondent.
+ * <p>
+ * A window opens when the user double-clicks someone in the user list, or when a
+ * {@link Opcode#PRIVATE_MESSAGE} arrives from someone without one. Each shows the conversation,
+ * an input field, and whether the last message sent was delivered, from {@link Opcode#PRIVATE_STATUS}.
+ * Correspondents are matched like user names on the server, without regard to case.
+ * All methods must be called on the Event Dispatch Thread.
+ */
+class PrivateChats {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm");
+
+    private final JFrame owner;
+    private final BiConsumer<String, String> send;
+    // Normalised name -> open conversation
+    private final Map<String, Conversation> conversations = new HashMap<>();
+
+    /**
+     * @param owner The client's main window.
+     * @param send  Sends a private message to the server: recipient, then text.
+     */
+    PrivateChats(JFrame owner, BiConsumer<String, String> send) {
+        this.owner = owner;
+        this.send = send;
+    }
+
+    /**
+     * Shows the conversation with a user, opening a window if there is none.
+     *
+     * @param userName The correspondent.
+     */
+    void open(String userName) {
+        Conversation conversation = conversation(userName);
+        conversation.window.setVisible(true);
+        conversation.input.requestFocusInWindow();
+    }
+
+    /**
+     * Shows a received private message ({@code sender:text}).
+     */
+    void receive(String payload) {
+        int colon = payload.indexOf(':');
+        if (colon < 0) return;
+        String sender = payload.substring(0, colon);
+        Conversation conversation = conversation(sender);
+        conversation.view.append(sender + ": " + payload.substring(colon + 1));
+        conversation.window.setVisible(true);
+    }
+
+    /**
+     * Shows whether a message was delivered ({@code user:delivered} or {@code user:offline}).
+     */
+    void status(String payload) {
+        int colon = payload.lastIndexOf(':');
+        if (colon < 0) return;
+        String recipient = payload.substring(0, colon);
+        Conversation conversation = conversation(recipient);
+        if (payload.substring(colon + 1).equals(DirectMessages.DELIVERED)) {
+            conversation.status.setText("Delivered at " + LocalTime.now().format(TIME));
+        } else {
+            conversation.status.setText(recipient + " is offline");
+            conversation.view.append(recipient + " is offline; the message was not delivered.");
+        }
+        conversation.window.setVisible(true);
+    }
+
+    private Conversation conversation(String userName) {
+        return conversations.computeIfAbsent(UserRegistry.key(userName), key -> new Conversation(userName));
+    }
+
+    /**
+     * The window of one conversation.
+     */
+    private class Conversation {
+        private final JDialog window;
+        private final ChatView view = new ChatView();
+        private final JTextField input = new JTextField();
+        private final JLabel status = new JLabel(" ");
+
+        Conversation(String userName) {
+            window = new JDialog(owner, "Private chat with " + userName, false);
+            window.setDefaultCloseOperation(JDialog.HIDE_ON_CLOSE);
+            window.setSize(400, 300);
+            window.setLocationRelativeTo(owner);
+
+            JButton sendButton = new JButton("Send");
+            JPanel inputPanel = new JPanel(new BorderLayout());
+            inputPanel.add(input, BorderLayout.CENTER);
+            inputPanel.add(sendButton, BorderLayout.EAST);
+            inputPanel.add(status, BorderLayout.SOUTH);
+
+            window.add(view, BorderLayout.CENTER);
+            window.add(inputPanel, BorderLayout.SOUTH);
+
+            Runnable sendInput = () -> {
+                String text = input.getText().trim();
+                if (text.isEmpty()) return;
+                send.accept(userName, text);
+                view.append("Me: " + text);
+                status.setText("Sending...");
+                input.setText("");
+            };
+            sendButton.addActionListener(e -> sendInput.run());
+            input.addActionListener(e -> sendInput.run());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.zakaria;
+
+/**
+ * A point-in-time view of a client's outbound queue.
+ *
+ * @param depth         Messages currently waiting to be written.
+ * @param highWatermark The largest depth seen so far.
+ * @param sent          Messages handed to the socket so far.
+ * @param dropped       Messages discarded because the queue was full.
+ */
+public record QueueStats(int depth, int highWatermark, long sent, long dropped) {
+
+    @Override
+    public String toString() {
+        return "depth=" + depth + ", max=" + highWatermark + ", sent=" + sent + ", dropped=" + dropped;
+    }
+}
@@ -0,0 +1,338 @@
+package org.zakaria;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The chat rooms of a server. Every client is in exactly one room at a time, starting in
+ * {@link #DEFAULT_ROOM} ({@code messenger.rooms.default}, default "lobby"), and moves with
+ * {@code /join <room>} and {@code /leave}. Chat lines, join and leave notices and, when tracked,
+ * the user list only reach the members of the sender's room.
+ * <p>
+ * Each room keeps its members in a concurrent set, so a broadcast walks only that room and a
+ * client joining or leaving touches only its own entry. Rooms are created by their first member and
+ * dropped with their last, except the default room. Names are matched without regard to case.
+ * <p>
+ * A {@link Listener} sees every membership change and broadcast, so another server can mirror
+ * them; what it reports back enters through {@link #remoteEntered}, {@link #remoteExited} and
+ * {@link #deliver}, which list users and deliver messages here without telling the listener again.
+ * <p>
+ * With a {@link MulticastFanout}, members who opted in get a room's messages by multicast, one datagram
+ * whatever their number; only the others are written to one by one.
+ */
+public class Rooms {
+    static final String DEFAULT_ROOM = System.getProperty("messenger.rooms.default", "lobby");
+    static final int MAX_NAME_LENGTH = 32;
+
+    // Lower-cased name -> room; all membership changes of a room run inside compute on its key
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final boolean trackPresence;
+    private volatile Listener listener;
+    private volatile MulticastFanout multicast;
+
+    /**
+     * @param trackPresence Whether members get the room's user list through a {@link PresenceTracker}.
+     */
+    public Rooms(boolean trackPresence) {
+        this.trackPresence = trackPresence;
+    }
+
+    /**
+     * Told about every local change, from the thread making it; see {@link ClusterBridge}.
+     */
+    public interface Listener {
+        void entered(Room room, String userName);
+
+        void exited(Room room, String userName);
+
+        void broadcast(Room room, Message message);
+    }
+
+    /**
+     * A named set of connections.
+     */
+    public final class Room {
+        private final String name;
+        // Connection -> the name it is listed under
+        private final ConcurrentHashMap<ClientConnection, String> members = new ConcurrentHashMap<>();
+        // The members sent to one by one, and those reached by multicast
+        private final Set<ClientConnection> unicast = ConcurrentHashMap.newKeySet();
+        private final Set<ClientConnection> subscribers = ConcurrentHashMap.newKeySet();
+        private final PresenceTracker presence;
+        // This room's numbered messages, or null without multicast
+        final MulticastFanout.Stream stream;
+        // Users listed here who are connected to other servers; guarded by compute on the room's key
+        private int remoteUsers;
+
+        private Room(String name) {
+            this.name = name;
+            this.presence = trackPresence ? new PresenceTracker() : null;
+            MulticastFanout fanout = multicast;
+            this.stream = fanout != null ? fanout.open() : null;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDefault() {
+            return Rooms.isDefault(name);
+        }
+
+        /**
+         * @return The members, as a live read-only view.
+         */
+        public Set<ClientConnection> getMembers() {
+            return members.keySet();
+        }
+
+        /**
+         * @return The room's user list, or null if the rooms do not track presence.
+         */
+        public PresenceTracker getPresence() {
+            return presence;
+        }
+
+        /**
+         * Sends a message to every member but one.
+         *
+         * @param message The message, encoded at most once per protocol whatever the room size.
+         * @param sender  The member not to send it to, or null.
+         */
+        public void broadcast(Message message, ClientConnection sender) {
+            send(message, sender);
+            Listener current = listener;
+            if (current != null) {
+                current.broadcast(this, message);
+            }
+        }
+
+        private void send(Message message, ClientConnection sender) {
+            long start = System.nanoTime();
+            for (ClientConnection member : unicast) {
+                if (member != sender) {
+                    member.send(message);
+                }
+            }
+            if (!subscribers.isEmpty()) {
+                multicast.publish(stream, message, sender, subscribers);
+            }
+            Metrics.broadcasts.increment();
+            Metrics.broadcastFanOut.record(System.nanoTime() - start);
+        }
+
+        private boolean isUnused() {
+            return members.isEmpty() && remoteUsers == 0 && !isDefault();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * @param listener Told about every change from now on, or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param multicast Reaches the members who opted in from now on, or null. Set before any room exists.
+     */
+    public void setMulticast(MulticastFanout multicast) {
+        this.multicast = multicast;
+    }
+
+    /**
+     * Puts a connection into a room, creating the room if needed, without announcing it.
+     *
+     * @param name       The room's name.
+     * @param connection The connection.
+     * @param userName   The name the connection is listed under.
+     * @return The room.
+     */
+    public Room enter(String name, ClientConnection connection, String userName) {
+        return rooms.compute(key(name), (key, room) -> {
+            if (room == null) {
+                room = new Room(name);
+            }
+            room.members.put(connection, userName);
+            if (room.stream != null && multicast.isSubscribed(connection)) {
+                room.subscribers.add(connection);
+                // Where the client picks up the room's stream; earlier messages are not for it
+                connection.send(Message.of(Opcode.MULTICAST_ROOM, room.stream.getId() + ":" + multicast.nextSequence(room.stream)));
+            } else {
+                room.unicast.add(connection);
+            }
+            if (room.presence != null) {
+                // Sends this connection the room's user list, everyone else in it a delta
+                room.presence.join(connection, userName);
+            }
+            Listener current = listener;
+            if (current != null) {
+                current.entered(room, userName);
+            }
+            return room;
+        });
+    }
+
+    /**
+     * Takes a connection out of its room without announcing it; an emptied room is dropped.
+     *
+     * @param room       The connection's room, or null if it never entered one.
+     * @param connection The connection.
+     */
+    public void exit(Room room, ClientConnection connection) {
+        if (room == null) return;
+        rooms.computeIfPresent(key(room.name), (key, current) -> {
+            if (current != room) return current;
+            String userName = room.members.remove(connection);
+            if (userName == null) return room;
+            room.unicast.remove(connection);
+            room.subscribers.remove(connection);
+            if (room.presence != null) {
+                room.presence.leave(connection);
+            }
+            Listener listening = listener;
+            if (listening != null) {
+                listening.exited(room, userName);
+            }
+            return keepOrDrop(room);
+        });
+    }
+
+    /**
+     * Lists a user connected to another server in a room, creating the room if needed.
+     *
+     * @param name     The room's name.
+     * @param userName The user's name.
+     */
+    public void remoteEntered(String name, String userName) {
+        rooms.compute(key(name), (key, room) -> {
+            if (room == null) {
+                room = new Room(name);
+            }
+            room.remoteUsers++;
+            if (room.presence != null) {
+                room.presence.add(userName);
+            }
+            return room;
+        });
+    }
+
+    /**
+     * Removes a user listed by {@link #remoteEntered(String, String)}.
+     *
+     * @param name     The room's name.
+     * @param userName The user's name.
+     */
+    public void remoteExited(String name, String userName) {
+        rooms.computeIfPresent(key(name), (key, room) -> {
+            if (room.remoteUsers == 0) return room;
+            room.remoteUsers--;
+            if (room.presence != null) {
+                room.presence.remove(userName);
+            }
+            return keepOrDrop(room);
+        });
+    }
+
+    /**
+     * Sends a message from another server to this server's members of a room.
+     *
+     * @param name    The room's name.
+     * @param message The message.
+     */
+    public void deliver(String name, Message message) {
+        Room room = rooms.get(key(name));
+        if (room != null) {
+            room.send(message, null);
+        }
+    }
+
+    /**
+     * @param name A room's name.
+     * @return Whether it names the default room.
+     */
+    public static boolean isDefault(String name) {
+        return key(name).equals(key(DEFAULT_ROOM));
+    }
+
+    /**
+     * Handles {@code /join <room>}: moves a connection to another room, announcing the move in
+     * both rooms and telling the connection where it is now.
+     *
+     * @param current    The connection's room.
+     * @param name       The requested room's name, as typed.
+     * @param connection The connection.
+     * @param userName   The connection's user name.
+     * @return The connection's room afterwards.
+     */
+    public Room join(Room current, String name, ClientConnection connection, String userName) {
+        name = name.trim();
+        if (name.isEmpty()) {
+            connection.send("Usage: /join <room>");
+            return current;
+        }
+        if (name.length() > MAX_NAME_LENGTH || name.chars().anyMatch(c -> Character.isWhitespace(c) || c == ',')) {
+            connection.send("Room names have up to " + MAX_NAME_LENGTH + " characters and no spaces or commas.");
+            return current;
+        }
+        if (current != null && key(current.name).equals(key(name))) {
+            connection.send("You are already in " + current.name + ".");
+            return current;
+        }
+        return move(current, name, connection, userName);
+    }
+
+    /**
+     * Handles {@code /leave [room]}: moves a connection back to the default room.
+     *
+     * @param current    The connection's room.
+     * @param name       The room to leave as typed, or empty for the current one.
+     * @param connection The connection.
+     * @param userName   The connection's user name.
+     * @return The connection's room afterwards.
+     */
+    public Room leave(Room current, String name, ClientConnection connection, String userName) {
+        name = name.trim();
+        if (current == null || (!name.isEmpty() && !key(current.name).equals(key(name)))) {
+            connection.send("You are not in " + (name.isEmpty() ? "a room" : name) + ".");
+            return current;
+        }
+        if (current.isDefault()) {
+            connection.send("You are in " + current.name + ", which cannot be left; /join another room instead.");
+            return current;
+        }
+        return move(current, DEFAULT_ROOM, connection, userName);
+    }
+
+    private Room move(Room current, String name, ClientConnection connection, String userName) {
+        exit(current, connection);
+        if (current != null) {
+            current.broadcast(Message.text(userName + " has left " + current.name + "."), connection);
+        }
+        Room room = enter(name, connection, userName);
+        room.broadcast(Message.text(userName + " has joined " + room.name + "."), connection);
+        connection.send("You are now in " + room.name + " (" + room.members.size() + " online).");
+        return room;
+    }
+
+    /**
+     * @return The room, or null to drop it from the map if it is no longer used.
+     */
+    private Room keepOrDrop(Room room) {
+        if (!room.isUnused()) return room;
+        if (room.stream != null) {
+            multicast.retire(room.stream);
+        }
+        return null;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
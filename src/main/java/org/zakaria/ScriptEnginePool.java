@@ -0,0 +1,177 @@
+package org.zakaria;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+/**
+ * A fixed set of Nashorn engines shared by all calculator clients.
+ * <p>
+ * Engines are bootstrapped lazily, once per slot rather than once per connection, and again only
+ * when a runaway evaluation forces a slot's engine to be {@link Session#abandon() replaced}. Each
+ * engine keeps an LRU of {@link CompiledScript}s keyed by normalised expression text, so a repeated
+ * expression is only parsed and compiled once. Clients open a {@link Session}, which is pinned to one
+ * engine and owns its own bindings: variables a client defines are invisible to every other client.
+ * Sizes come from {@code messenger.eval.engines} (default: CPU count) and
+ * {@code messenger.eval.cacheSize} (default 1024 scripts per engine).
+ */
+public class ScriptEnginePool {
+    private static final String ENGINE_NAME = "Nashorn";
+
+    private final ScriptEngineManager manager = new ScriptEngineManager();
+    private final AtomicReferenceArray<PooledEngine> engines;
+    private final int cacheSize;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+
+    public ScriptEnginePool() {
+        this(Integer.getInteger("messenger.eval.engines", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("messenger.eval.cacheSize", 1024));
+    }
+
+    public ScriptEnginePool(int size, int cacheSize) {
+        this.engines = new AtomicReferenceArray<>(Math.max(1, size));
+        this.cacheSize = cacheSize;
+        for (int i = 0; i < engines.length(); i++) {
+            engines.set(i, new PooledEngine());
+        }
+    }
+
+    /**
+     * Bootstraps the first engine, so that a missing script engine is reported at startup
+     * and the first client does not pay for it.
+     *
+     * @throws IllegalStateException If no Nashorn engine is on the classpath.
+     */
+    public void warmUp() {
+        engines.get(0).engine();
+    }
+
+    /**
+     * Opens a session for one client. This is cheap: no engine or bindings are created until
+     * the client evaluates its first expression.
+     *
+     * @return A new session, pinned to one of the pooled engines.
+     */
+    public Session openSession() {
+        return new Session(Math.floorMod(nextSlot.getAndIncrement(), engines.length()));
+    }
+
+    /**
+     * Normalises an expression for use as a cache key. Whitespace runs are collapsed, except when
+     * the expression contains quotes, where whitespace may be significant.
+     */
+    static String normalize(String expression) {
+        String trimmed = expression.trim();
+        if (trimmed.indexOf('"') >= 0 || trimmed.indexOf('\'') >= 0 || trimmed.indexOf('`') >= 0) {
+            return trimmed;
+        }
+        // Hand-rolled rather than a regex: this runs on every EVAL, and most expressions need no change
+        StringBuilder normalized = null;
+        boolean previousSpace = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            boolean space = Character.isWhitespace(c);
+            if (normalized == null && space && (c != ' ' || previousSpace)) {
+                normalized = new StringBuilder(trimmed.length()).append(trimmed, 0, i);
+            }
+            if (normalized != null && (!space || !previousSpace)) {
+                normalized.append(space ? ' ' : c);
+            }
+            previousSpace = space;
+        }
+        return normalized == null ? trimmed : normalized.toString();
+    }
+
+    /**
+     * One engine with its compiled-script cache. All use is serialised on the instance.
+     */
+    private class PooledEngine {
+        private ScriptEngine engine;
+        private final Map<String, CompiledScript> compiled = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        synchronized ScriptEngine engine() {
+            if (engine == null) {
+                engine = manager.getEngineByName(ENGINE_NAME);
+                if (engine == null) {
+                    throw new IllegalStateException("JavaScript engine not available. Add Nashorn to the classpath.");
+                }
+            }
+            return engine;
+        }
+
+        synchronized Object eval(String expression, ScriptContext context) throws ScriptException {
+            String key = normalize(expression);
+            CompiledScript script = compiled.get(key);
+            if (script == null) {
+                script = ((Compilable) engine()).compile(key);
+                compiled.put(key, script);
+            }
+            return script.eval(context);
+        }
+
+        synchronized Bindings createBindings() {
+            return engine().createBindings();
+        }
+    }
+
+    /**
+     * A client's evaluation context: its engine plus private bindings.
+     * Not thread-safe, except for {@link #abandon()}; a client evaluates one expression at a time.
+     */
+    public class Session {
+        private final int slot;
+        private volatile PooledEngine engine;
+        private ScriptContext context;
+
+        private Session(int slot) {
+            this.slot = slot;
+        }
+
+        /**
+         * Evaluates an expression in this client's private scope.
+         *
+         * @param expression The expression.
+         * @return The result, possibly {@code null}.
+         * @throws ScriptException If the expression is invalid or fails.
+         */
+        public Object eval(String expression) throws ScriptException {
+            PooledEngine current = engines.get(slot);
+            if (engine != current) {
+                // First use, or the engine was replaced: bindings belong to the engine that created them
+                engine = current;
+                context = null;
+            }
+            if (context == null) {
+                context = new SimpleScriptContext();
+                context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+            }
+            return engine.eval(expression, context);
+        }
+
+        /**
+         * Gives up on an evaluation that is still running, e.g. an endless loop. The engine it holds
+         * is replaced in the pool, so other sessions on the same slot are no longer blocked behind it;
+         * they, and this session, start over with empty bindings on the new engine.
+         */
+        public void abandon() {
+            PooledEngine stuck = engine;
+            if (stuck != null) {
+                engines.compareAndSet(slot, stuck, new PooledEngine());
+            }
+        }
+    }
+}
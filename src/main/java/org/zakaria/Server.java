@@ -1,83 +1,46 @@
 package org.zakaria;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Server {
     private static final int port = 5000;
-    private static CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<ClientHandler>();
+    // Every client is in one room, which is all its messages reach
+    private static final Rooms rooms = new Rooms(false);
 
     public static void main(String[] args) {
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
+            ChatTransport transport = ChatTransport.fromSystemProperties();
+            // Stop accepting and let every handler finish when the JVM is asked to exit
+            Runtime.getRuntime().addShutdownHook(new Thread(transport::close));
             System.out.println("Server is running on port " + port + " and waiting for connections...");
 
             // Accept connections of clients
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket);
-                ClientHandler client = new ClientHandler(clientSocket);
-                clients.add(client);
-                new Thread(client).start();
-            }
+            transport.serve(port, connection -> {
+                System.out.println("New client connected: " + connection);
+                return new ClientHandler(connection);
+            });
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     public static void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.getOut().println(message);
-            }
-        }
+        if (sender.room == null) return;
+        // Encode once and hand the same bytes to every recipient in the sender's room
+        sender.room.broadcast(Message.text(message), sender.connection);
     }
 
-    private static class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        PrintWriter out;
-        BufferedReader in;
+    private static class ClientHandler implements ConnectionHandler {
+        private final ClientConnection connection;
         String userName;
+        private Rooms.Room room;
 
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
-
-            try {
-                // Create the flow of data ( in and out ) for communication
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        public Socket getClientSocket() {
-            return clientSocket;
-        }
-
-        public void setClientSocket(Socket clientSocket) {
-            this.clientSocket = clientSocket;
+        public ClientHandler(ClientConnection connection) {
+            this.connection = connection;
         }
 
-        public PrintWriter getOut() {
-            return out;
-        }
-
-        public void setOut(PrintWriter out) {
-            this.out = out;
-        }
-
-        public BufferedReader getIn() {
-            return in;
-        }
-
-        public void setIn(BufferedReader in) {
-            this.in = in;
+        public ClientConnection getConnection() {
+            return connection;
         }
 
         public String getUserName() {
@@ -89,37 +52,41 @@ public class Server {
         }
 
         @Override
-        public void run() {
-            try {
+        public void onOpen() {
+        }
+
+        @Override
+        public void onLine(String inLine) {
+            if (userName == null) {
                 // Get client's user name
-                userName = in.readLine();
+                userName = inLine;
                 System.out.println("New user connected: " + userName);
-                out.println("Welcome to the chat room, " + userName + " !");
-                out.println("Write any message you want :D");
-                String inLine;
-                while (true) {
-                    if ((inLine = in.readLine()) == null) break;
-                    System.out.println("[" + userName + "]: " + inLine);
-                    // Send the message to all clients
-                    broadcast("[ " + userName + " ]: " + inLine, this);
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } finally {
-                clients.remove(this);
-                try {
-                    out.close();
-                    in.close();
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
-                }
+                connection.send("Welcome to the chat room, " + userName + " !");
+                connection.send("Write any message you want :D");
+                room = rooms.enter(Rooms.DEFAULT_ROOM, connection, userName);
+                return;
             }
+            if (Opcode.JOIN_ROOM.matches(inLine)) {
+                room = rooms.join(room, inLine.substring(Opcode.JOIN_ROOM.getTextPrefix().length()), connection, userName);
+                return;
+            }
+            if (Opcode.LEAVE_ROOM.matches(inLine)) {
+                room = rooms.leave(room, inLine.substring(Opcode.LEAVE_ROOM.getTextPrefix().length()), connection, userName);
+                return;
+            }
+            System.out.println("[" + userName + "]: " + inLine);
+            // Send the message to all clients
+            broadcast("[ " + userName + " ]: " + inLine, this);
+        }
+
+        @Override
+        public void onClose() {
+            rooms.exit(room, connection);
         }
 
         public void sendMessage(String message) {
-            out.println(message);
-            out.println("Write your message !");
+            connection.send(message);
+            connection.send("Write your message !");
         }
     }
-}
\ No newline at end of file
+}
@@ -1,126 +1,121 @@
 package org.zakaria;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.CopyOnWriteArrayList;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
 
 public class ServerCalculator {
     private static final int port = 5000;
-    private static CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    // Every client is in one room, which is all its messages reach
+    private static final Rooms rooms = new Rooms(false);
+    // Nashorn engines shared by all clients instead of one engine per connection
+    private static final ScriptEnginePool engines = new ScriptEnginePool();
+    // Plain arithmetic is evaluated natively; -Dmessenger.eval.native=false sends everything to Nashorn
+    private static final boolean NATIVE_EVAL = Boolean.parseBoolean(System.getProperty("messenger.eval.native", "true"));
+    private static final ArithmeticExpression.Cache arithmetic =
+            new ArithmeticExpression.Cache(Integer.getInteger("messenger.eval.cacheSize", 1024));
+    // Script evaluations run here, off the connection threads, with a deadline each
+    private static final EvalPool evaluators = new EvalPool();
 
     public static void main(String[] args) {
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
+            engines.warmUp();
+            ChatTransport transport = ChatTransport.fromSystemProperties();
+            // Stop accepting and let every handler finish when the JVM is asked to exit
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                transport.close();
+                evaluators.shutdown();
+            }));
             System.out.println("Server is running on port " + port + " and waiting for connections...");
 
             // Accept connections from clients
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket);
-                ClientHandler client = new ClientHandler(clientSocket);
-                clients.add(client);
-                new Thread(client).start();
-            }
+            transport.serve(port, connection -> {
+                System.out.println("New client connected: " + connection);
+                return new ClientHandler(connection);
+            });
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    // Broadcast message to all clients except the sender
+    // Broadcast message to the clients in the sender's room, except the sender
     public static void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.getOut().println(message);
-            }
-        }
+        if (sender.room == null) return;
+        // Encode once and hand the same bytes to every recipient
+        sender.room.broadcast(Message.text(message), sender.connection);
     }
 
     // Inner class to handle each client connection
-    private static class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
+    private static class ClientHandler implements ConnectionHandler {
+        private final ClientConnection connection;
         private String userName;
-        private ScriptEngine engine;
-
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
+        private Rooms.Room room;
+        // Private variables of this client; no engine is created until its first EVAL
+        private final ScriptEnginePool.Session calculator = engines.openSession();
+        // This client's pending script evaluations, run in order
+        private final EvalPool.Lane evals = evaluators.openLane();
 
-            try {
-                // Initialize input and output streams
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        public ClientHandler(ClientConnection connection) {
+            this.connection = connection;
+        }
 
-                // Initialize Nashorn JS Engine
-                ScriptEngineManager manager = new ScriptEngineManager();
-                engine = manager.getEngineByName("Nashorn");
-                if (engine == null) {
-                    throw new RuntimeException("JavaScript engine not available. Add Graal.js to the classpath.");
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        public ClientConnection getConnection() {
+            return connection;
         }
 
-        public PrintWriter getOut() {
-            return out;
+        @Override
+        public void onOpen() {
         }
 
         @Override
-        public void run() {
-            try {
+        public void onLine(String inLine) {
+            if (userName == null) {
                 // Get client's username
-                userName = in.readLine();
+                userName = inLine;
                 System.out.println("New user connected: " + userName);
-                out.println("Welcome to the chat room, " + userName + "!");
-                out.println("You can send messages or mathematical expressions prefixed with 'EVAL:'. For example:");
-                out.println("EVAL: 5 * (3 + 2)");
-
-                String inLine;
-                while ((inLine = in.readLine()) != null) {
-                    if (inLine.startsWith("EVAL:")) {
-                        // Handle evaluation request
-                        String expression = inLine.substring(5).trim();
-                        System.out.println("Received expression from " + userName + ": " + expression);
-                        String result;
-                        try {
-                            Object evalResult = engine.eval(expression);
-                            result = evalResult.toString();
-                        } catch (ScriptException e) {
-                            result = "Error evaluating expression.";
-                        }
-                        // Send the result back to the requesting client
-                        out.println("RESULT:" + result);
-                    } else {
-                        // Regular chat message
-                        System.out.println("[" + userName + "]: " + inLine);
-                        broadcast("[" + userName + "]: " + inLine, this);
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("Connection with " + userName + " lost.");
-            } finally {
-                clients.remove(this);
-                try {
-                    out.close();
-                    in.close();
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
+                connection.send("Welcome to the chat room, " + userName + "!");
+                connection.send("You can send messages or mathematical expressions prefixed with 'EVAL:'. For example:");
+                connection.send("EVAL: 5 * (3 + 2)");
+                room = rooms.enter(Rooms.DEFAULT_ROOM, connection, userName);
+                return;
+            }
+            if (Opcode.JOIN_ROOM.matches(inLine)) {
+                room = rooms.join(room, inLine.substring(Opcode.JOIN_ROOM.getTextPrefix().length()), connection, userName);
+            } else if (Opcode.LEAVE_ROOM.matches(inLine)) {
+                room = rooms.leave(room, inLine.substring(Opcode.LEAVE_ROOM.getTextPrefix().length()), connection, userName);
+            } else if (inLine.equals(Opcode.STATS.getTextPrefix())) {
+                Metrics.report().forEach(connection::send);
+            } else if (inLine.startsWith("EVAL:")) {
+                // Handle evaluation request
+                String expression = inLine.substring(5).trim();
+                System.out.println("Received expression from " + userName + ": " + expression);
+                ArithmeticExpression compiled = NATIVE_EVAL ? arithmetic.get(expression) : null;
+                if (compiled != null) {
+                    // Cheap and always terminates, so no worker is needed; the reply still waits for
+                    // this client's earlier script evaluations, since results carry no request id
+                    Metrics.evals.increment();
+                    evals.answer(compiled.evaluateToString(), result -> connection.send("RESULT:" + result));
+                } else {
+                    // Send the result back to the requesting client once the pool has evaluated it
+                    evals.submit(() -> String.valueOf(calculator.eval(expression)),
+                            result -> connection.send("RESULT:" + result),
+                            calculator::abandon);
                 }
+            } else {
+                // Regular chat message
+                System.out.println("[" + userName + "]: " + inLine);
+                broadcast("[" + userName + "]: " + inLine, this);
             }
         }
 
+        @Override
+        public void onClose() {
+            System.out.println("User disconnected: " + userName);
+            rooms.exit(room, connection);
+            evals.close();
+        }
+
         public void sendMessage(String message) {
-            out.println(message);
-            out.println("Write your message!");
+            connection.send(message);
+            connection.send("Write your message!");
         }
     }
 }
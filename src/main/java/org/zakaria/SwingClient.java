@@ -9,21 +9,25 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Swing-based client for the LAN Messenger.
  * Provides a graphical user interface for users to send and receive messages.
  */
 public class SwingClient implements Runnable {
-    private static final int PORT = 5000;
+    private static final int PORT = Integer.getInteger("messenger.port", 5000);
     private static final String HOST = "localhost";
 
     private JFrame frame;
-    private JTextArea chatArea;
+    private ChatView chatView;
     private JTextField inputField;
     private JButton sendButton;
-    private JList<String> userList;
-    private DefaultListModel<String> listModel;
+    private UserListPanel userPanel;
+
+    private PresenceView presence;
+    private PrivateChats privateChats;
 
     private PrintWriter out;
     private BufferedReader in;
@@ -46,17 +50,20 @@ public class SwingClient implements Runnable {
         frame.setLayout(new BorderLayout());
 
         // Chat area
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setLineWrap(true);
-        JScrollPane chatScrollPane = new JScrollPane(chatArea);
+        chatView = new ChatView();
 
         // User list
-        listModel = new DefaultListModel<>();
-        userList = new JList<>(listModel);
-        JScrollPane userScrollPane = new JScrollPane(userList);
-        userScrollPane.setPreferredSize(new Dimension(150, 0));
-        userScrollPane.setBorder(BorderFactory.createTitledBorder("Users"));
+        userPanel = new UserListPanel(150);
+        presence = new PresenceView(userPanel.getModel(), () -> out.println("/users"));
+
+        // Double-clicking a user opens a private conversation
+        privateChats = new PrivateChats(frame, (recipient, text) ->
+                out.println(Opcode.DIRECT_MESSAGE.getTextPrefix() + recipient + " " + text));
+        userPanel.addOpenListener(user -> {
+            if (userName == null || !UserRegistry.key(user).equals(UserRegistry.key(userName))) {
+                privateChats.open(user);
+            }
+        });
 
         // Input panel
         JPanel inputPanel = new JPanel();
@@ -67,8 +74,8 @@ public class SwingClient implements Runnable {
         inputPanel.add(sendButton, BorderLayout.EAST);
 
         // Add components to frame
-        frame.add(chatScrollPane, BorderLayout.CENTER);
-        frame.add(userScrollPane, BorderLayout.EAST);
+        frame.add(chatView, BorderLayout.CENTER);
+        frame.add(userPanel, BorderLayout.EAST);
         frame.add(inputPanel, BorderLayout.SOUTH);
 
         // Action listener for send button
@@ -100,10 +107,14 @@ public class SwingClient implements Runnable {
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
             // Prompt for username
-            userName = JOptionPane.showInputDialog(frame, "Enter your username:", "Username", JOptionPane.PLAIN_MESSAGE);
-            if (userName == null || userName.trim().isEmpty()) {
-                userName = "Anonymous";
-            }
+            String message = "Enter your username:";
+            do {
+                userName = JOptionPane.showInputDialog(frame, message, "Username", JOptionPane.PLAIN_MESSAGE);
+                if (userName == null || userName.trim().isEmpty()) {
+                    userName = "Anonymous";
+                }
+                message = "User names cannot contain spaces, commas or colons. Enter your username:";
+            } while (!UserRegistry.isValidName(userName));
             out.println(userName);
 
             // Start a thread to listen for messages from the server
@@ -121,7 +132,7 @@ public class SwingClient implements Runnable {
         String message = inputField.getText().trim();
         if (!message.isEmpty()) {
             out.println(message);
-            chatArea.append("Me: " + message + "\n");
+            chatView.append("Me: " + message);
             inputField.setText("");
         }
     }
@@ -130,20 +141,17 @@ public class SwingClient implements Runnable {
      * Runnable class to handle incoming messages from the server.
      */
     private class IncomingReader implements Runnable {
+        private final EdtQueue<String> incoming = new EdtQueue<>(this::handleServerMessages);
+
         @Override
         public void run() {
             String serverMessage;
             try {
                 while ((serverMessage = in.readLine()) != null) {
-                    if (serverMessage.startsWith("USER_LIST:")) {
-                        String users = serverMessage.substring(10);
-                        updateUserList(users);
-                    } else {
-                        chatArea.append(serverMessage + "\n");
-                    }
+                    incoming.post(serverMessage);
                 }
             } catch (IOException e) {
-                chatArea.append("Disconnected from server.\n");
+                incoming.post("Disconnected from server.");
             } finally {
                 try {
                     if (in != null) in.close();
@@ -155,21 +163,39 @@ public class SwingClient implements Runnable {
             }
         }
 
+        /**
+         * Applies a batch of lines from the server, in order. Consecutive chat lines are added
+         * to the chat view together.
+         *
+         * @param batch The lines received since the previous batch.
+         */
+        private void handleServerMessages(List<String> batch) {
+            List<String> lines = new ArrayList<>();
+            for (String serverMessage : batch) {
+                if (serverMessage.startsWith("USER_LIST:")) {
+                    updateUserList(serverMessage.substring(10));
+                } else if (serverMessage.startsWith("USER_SNAPSHOT:")) {
+                    presence.applySnapshot(serverMessage.substring(14));
+                } else if (serverMessage.startsWith("USER_DELTA:")) {
+                    presence.applyDelta(serverMessage.substring(11));
+                } else if (serverMessage.startsWith(Opcode.PRIVATE_MESSAGE.getTextPrefix())) {
+                    privateChats.receive(serverMessage.substring(Opcode.PRIVATE_MESSAGE.getTextPrefix().length()));
+                } else if (serverMessage.startsWith(Opcode.PRIVATE_STATUS.getTextPrefix())) {
+                    privateChats.status(serverMessage.substring(Opcode.PRIVATE_STATUS.getTextPrefix().length()));
+                } else {
+                    lines.add(serverMessage);
+                }
+            }
+            chatView.appendAll(lines);
+        }
+
         /**
          * Updates the user list displayed in the GUI.
          *
          * @param users Comma-separated list of usernames.
          */
         private void updateUserList(String users) {
-            SwingUtilities.invokeLater(() -> {
-                listModel.clear();
-                if (!users.isEmpty()) {
-                    String[] userArray = users.split(",");
-                    for (String user : userArray) {
-                        listModel.addElement(user);
-                    }
-                }
-            });
+            presence.applyLegacyList(users);
         }
     }
 
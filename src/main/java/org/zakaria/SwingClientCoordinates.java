@@ -2,6 +2,8 @@
 package org.zakaria;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import javax.swing.*;
@@ -10,12 +12,19 @@ import javax.swing.event.ListSelectionListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Swing-based client for the LAN Messenger.
@@ -25,15 +34,28 @@ import java.net.URI;
 public class SwingClientCoordinates implements Runnable {
     private static final int PORT = 5000;
     private static final String HOST = "localhost";
+    // Ask the server for binary framing unless -Dmessenger.protocol=text
+    private static final boolean OFFER_BINARY = !"text".equalsIgnoreCase(System.getProperty("messenger.protocol", "binary"));
+    // Ask for room broadcasts by multicast with -Dmessenger.multicast=true; see MulticastFanout
+    private static final boolean OFFER_MULTICAST = Boolean.getBoolean("messenger.multicast");
+    // Prefixed opcodes the user may type as commands
+    private static final Opcode[] USER_COMMANDS = {Opcode.SAVE, Opcode.QUEUES, Opcode.SYNC_USERS, Opcode.GET_COORDINATES,
+            Opcode.FIND_NEAR, Opcode.FIND_NEAREST, Opcode.HISTORY, Opcode.STATS, Opcode.JOIN_ROOM, Opcode.LEAVE_ROOM,
+            Opcode.DIRECT_MESSAGE};
 
     private JFrame frame;
-    private JTextArea chatArea;
+    private ChatView chatView;
     private JTextField inputField;
     private JButton sendButton;
     private JList<String> userList;
-    private DefaultListModel<String> listModel;
-    private PrintWriter out;
-    private BufferedReader in;
+    private UserListModel listModel;
+    private PresenceView presence;
+    private PrivateChats privateChats;
+    private OutputStream out;
+    private DataInputStream in;
+    private volatile WireProtocol protocol = WireProtocol.TEXT;
+    // Set once the server accepts the multicast offer
+    private MulticastReceiver multicast;
     private String userName;
     private Gson gson = new Gson();
 
@@ -54,18 +76,23 @@ public class SwingClientCoordinates implements Runnable {
         frame.setLayout(new BorderLayout());
 
         // Chat area
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setLineWrap(true);
-        JScrollPane chatScrollPane = new JScrollPane(chatArea);
+        chatView = new ChatView();
 
         // User list
-        listModel = new DefaultListModel<>();
-        userList = new JList<>(listModel);
+        UserListPanel userPanel = new UserListPanel(200);
+        listModel = userPanel.getModel();
+        userList = userPanel.getList();
+        presence = new PresenceView(listModel, () -> send(Message.of(Opcode.SYNC_USERS, "")));
         userList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        JScrollPane userScrollPane = new JScrollPane(userList);
-        userScrollPane.setPreferredSize(new Dimension(200, 0));
-        userScrollPane.setBorder(BorderFactory.createTitledBorder("Users"));
+
+        // Double-clicking a user opens a private conversation
+        privateChats = new PrivateChats(frame, (recipient, text) ->
+                send(Message.of(Opcode.DIRECT_MESSAGE, recipient + " " + text)));
+        userPanel.addOpenListener(user -> {
+            if (userName == null || !UserRegistry.key(user).equals(UserRegistry.key(userName))) {
+                privateChats.open(user);
+            }
+        });
 
         // Add mouse listener for user list clicks
         userList.addListSelectionListener(new ListSelectionListener() {
@@ -92,8 +119,8 @@ public class SwingClientCoordinates implements Runnable {
         inputPanel.add(sendButton, BorderLayout.EAST);
 
         // Add components to frame
-        frame.add(chatScrollPane, BorderLayout.CENTER);
-        frame.add(userScrollPane, BorderLayout.EAST);
+        frame.add(chatView, BorderLayout.CENTER);
+        frame.add(userPanel, BorderLayout.EAST);
         frame.add(inputPanel, BorderLayout.SOUTH);
 
         // Action listener for send button
@@ -121,25 +148,47 @@ public class SwingClientCoordinates implements Runnable {
     private void connectToServer() {
         try {
             Socket socket = new Socket(HOST, PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = socket.getOutputStream();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // Offer binary framing before anything else; the server acknowledges or declines
+            if (OFFER_BINARY) {
+                send(Message.text(WireProtocol.BINARY_OFFER));
+            } else if (OFFER_MULTICAST) {
+                send(Message.text(MulticastFanout.OFFER));
+            }
 
             // Start a thread to listen for messages from the server
-            new Thread(new IncomingReader()).start();
+            new Thread(new IncomingReader(OFFER_BINARY)).start();
         } catch (IOException e) {
             JOptionPane.showMessageDialog(frame, "Unable to connect to the server.", "Connection Error", JOptionPane.ERROR_MESSAGE);
             System.exit(0);
         }
     }
 
+    /**
+     * Sends a protocol message to the server, encoded for the negotiated protocol.
+     *
+     * @param message The message to send.
+     */
+    private void send(Message message) {
+        synchronized (out) {
+            try {
+                message.encode(protocol).writeTo(out);
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> chatView.append("Failed to send message to server."));
+            }
+        }
+    }
+
     /**
      * Sends a message to the server.
      */
     private void sendMessage() {
         String message = inputField.getText().trim();
         if (!message.isEmpty()) {
-            out.println(message);
-            chatArea.append("Me: " + message + "\n");
+            send(Opcode.parseLine(message, USER_COMMANDS));
+            chatView.append("Me: " + message);
             inputField.setText("");
         }
     }
@@ -150,23 +199,59 @@ public class SwingClientCoordinates implements Runnable {
      * @param targetUser The username to request coordinates for.
      */
     private void requestUserCoordinates(String targetUser) {
-        out.println("/get " + targetUser);
+        send(Message.of(Opcode.GET_COORDINATES, targetUser));
     }
 
     /**
      * Runnable class to handle incoming messages from the server.
      */
     private class IncomingReader implements Runnable {
+        private final Map<Opcode, Consumer<String>> handlers = new EnumMap<>(Opcode.class);
+        private final EdtQueue<Message> incoming = new EdtQueue<>(this::handleServerMessages);
+        private boolean awaitingProtocol;
+
+        IncomingReader(boolean awaitingProtocol) {
+            this.awaitingProtocol = awaitingProtocol;
+            handlers.put(Opcode.PROMPT, this::answerPrompt);
+            handlers.put(Opcode.USER_LIST, presence::applyLegacyList);
+            handlers.put(Opcode.USER_SNAPSHOT, presence::applySnapshot);
+            handlers.put(Opcode.USER_DELTA, presence::applyDelta);
+            handlers.put(Opcode.USER_COORDINATES, json -> displayUserCoordinates(json.trim()));
+            handlers.put(Opcode.NEARBY_USERS, json -> displayNearbyUsers(json.trim()));
+            handlers.put(Opcode.PRIVATE_MESSAGE, privateChats::receive);
+            handlers.put(Opcode.PRIVATE_STATUS, privateChats::status);
+        }
+
         @Override
         public void run() {
-            String serverMessage;
             try {
-                while ((serverMessage = in.readLine()) != null) {
-                    handleServerMessage(serverMessage);
+                while (true) {
+                    Message message;
+                    if (protocol == WireProtocol.BINARY) {
+                        message = FrameDecoder.read(in);
+                    } else {
+                        String line = readLine();
+                        if (line == null) break;
+                        if (awaitingProtocol) {
+                            // Skip whatever precedes the server's answer to our protocol offer
+                            if (line.startsWith("PROTOCOL:")) {
+                                awaitingProtocol = false;
+                                if (line.equals(WireProtocol.BINARY_OFFER)) protocol = WireProtocol.BINARY;
+                                // In the agreed protocol, and before the username
+                                if (OFFER_MULTICAST) send(Message.text(MulticastFanout.OFFER));
+                            }
+                            continue;
+                        }
+                        message = parseLine(line);
+                    }
+                    if (!handleMulticast(message)) {
+                        incoming.post(message);
+                    }
                 }
             } catch (IOException e) {
-                chatArea.append("Disconnected from server.\n");
+                incoming.post(Message.text("Disconnected from server."));
             } finally {
+                if (multicast != null) multicast.close();
                 try {
                     if (in != null) in.close();
                     if (out != null) out.close();
@@ -178,64 +263,122 @@ public class SwingClientCoordinates implements Runnable {
         }
 
         /**
-         * Handles different types of messages from the server.
+         * Handles the multicast control messages on this thread, so the receiver follows the
+         * connection without waiting for the Event Dispatch Thread.
          *
-         * @param message The message received from the server.
+         * @return Whether the message was one of them.
          */
-        private void handleServerMessage(String message) {
-            SwingUtilities.invokeLater(() -> {
-                if (message.startsWith("Enter your username:")) {
-                    userName = promptUser("Username", "Enter your username:");
-                    if (userName != null && !userName.trim().isEmpty()) {
-                        out.println(userName);
-                    } else {
-                        userName = "Anonymous";
-                        out.println(userName);
+        private boolean handleMulticast(Message message) {
+            switch (message.getOpcode()) {
+                case MULTICAST_GROUP:
+                    try {
+                        multicast = MulticastReceiver.open(message.getPayload(), incoming::post, SwingClientCoordinates.this::send);
+                    } catch (IOException e) {
+                        incoming.post(Message.text("Unable to receive multicast: " + e.getMessage()));
                     }
-                } else if (message.startsWith("Enter your latitude:")) {
-                    String latStr = promptUser("Latitude", "Enter your latitude:");
-                    out.println(latStr);
-                } else if (message.startsWith("Enter your longitude:")) {
-                    String lonStr = promptUser("Longitude", "Enter your longitude:");
-                    out.println(lonStr);
-                } else if (message.startsWith("USER_LIST:")) {
-                    String users = message.substring(10);
-                    updateUserList(users);
-                } else if (message.startsWith("USER_COORDINATES:")) {
-                    String json = message.substring(17).trim();
-                    displayUserCoordinates(json);
-                } else {
-                    chatArea.append(message + "\n");
+                    return true;
+                case MULTICAST_ROOM:
+                    if (multicast != null) multicast.enterRoom(message.getPayload());
+                    return true;
+                case MULTICAST_RESEND:
+                    if (multicast != null) multicast.resent(message.getPayload());
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Reads one legacy text line.
+         *
+         * @return The line without terminator, or null at end of stream.
+         */
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
                 }
-            });
+                line.write(b);
+            }
+            String text = line.toString(StandardCharsets.UTF_8);
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
         }
 
         /**
-         * Prompts the user for input using a dialog.
+         * Maps a legacy text line onto the message it stands for.
+         */
+        private Message parseLine(String line) {
+            Message message = Opcode.parseLine(line, Opcode.USER_LIST, Opcode.USER_SNAPSHOT, Opcode.USER_DELTA,
+                    Opcode.USER_COORDINATES, Opcode.NEARBY_USERS, Opcode.PRIVATE_MESSAGE, Opcode.PRIVATE_STATUS,
+                    Opcode.MULTICAST_GROUP, Opcode.MULTICAST_ROOM, Opcode.MULTICAST_RESEND);
+            if (message.getOpcode() == Opcode.TEXT && line.startsWith("Enter your ")) {
+                return Message.of(Opcode.PROMPT, line);
+            }
+            return message;
+        }
+
+        /**
+         * Handles a batch of messages from the server, in order, by dispatching on their opcode.
+         * Consecutive chat lines are added to the chat view together.
          *
-         * @param title   The title of the dialog.
-         * @param message The message to display.
-         * @return The user's input as a String.
+         * @param batch The messages received from the server since the previous batch.
          */
-        private String promptUser(String title, String message) {
-            return JOptionPane.showInputDialog(frame, message, title, JOptionPane.PLAIN_MESSAGE);
+        private void handleServerMessages(List<Message> batch) {
+            List<String> lines = new ArrayList<>();
+            for (Message message : batch) {
+                if (message.getOpcode() == Opcode.TEXT) {
+                    lines.add(message.getPayload());
+                    continue;
+                }
+                // Whatever this message prints must come after the lines before it
+                chatView.appendAll(lines);
+                lines.clear();
+                Consumer<String> handler = handlers.get(message.getOpcode());
+                if (handler != null) {
+                    handler.accept(message.getPayload());
+                } else {
+                    chatView.append(message.toLine());
+                }
+            }
+            chatView.appendAll(lines);
         }
 
         /**
-         * Updates the user list displayed in the GUI.
+         * Answers one of the server's handshake questions.
          *
-         * @param users Comma-separated list of usernames.
+         * @param question The question asked by the server.
          */
-        private void updateUserList(String users) {
-            listModel.clear();
-            if (!users.isEmpty()) {
-                String[] userArray = users.split(",");
-                for (String user : userArray) {
-                    listModel.addElement(user);
+        private void answerPrompt(String question) {
+            if (question.startsWith("Enter your username:")) {
+                userName = promptUser("Username", "Enter your username:");
+                if (userName == null || userName.trim().isEmpty()) {
+                    userName = "Anonymous";
                 }
+                send(Message.text(userName));
+            } else if (question.startsWith("Enter your latitude:")) {
+                String latStr = promptUser("Latitude", "Enter your latitude:");
+                send(Message.text(String.valueOf(latStr)));
+            } else if (question.startsWith("Enter your longitude:")) {
+                String lonStr = promptUser("Longitude", "Enter your longitude:");
+                send(Message.text(String.valueOf(lonStr)));
+            } else {
+                chatView.append(question);
             }
         }
 
+        /**
+         * Prompts the user for input using a dialog.
+         *
+         * @param title   The title of the dialog.
+         * @param message The message to display.
+         * @return The user's input as a String.
+         */
+        private String promptUser(String title, String message) {
+            return JOptionPane.showInputDialog(frame, message, title, JOptionPane.PLAIN_MESSAGE);
+        }
+
         /**
          * Displays the coordinates of a user by opening Google Maps in the default browser.
          *
@@ -250,9 +393,31 @@ public class SwingClientCoordinates implements Runnable {
 
                 String mapsUrl = String.format("https://www.google.com/maps?q=%f,%f", lat, lon);
                 Desktop.getDesktop().browse(new URI(mapsUrl));
-                chatArea.append("Opened " + name + "'s location on Google Maps.\n");
+                chatView.append("Opened " + name + "'s location on Google Maps.");
+            } catch (Exception e) {
+                chatView.append("Failed to parse user coordinates.");
+            }
+        }
+
+        /**
+         * Lists the users a /near or /nearest request found, nearest first.
+         *
+         * @param json The JSON array of users with their coordinates and distance.
+         */
+        private void displayNearbyUsers(String json) {
+            try {
+                JsonArray users = gson.fromJson(json, JsonArray.class);
+                if (users.isEmpty()) {
+                    chatView.append("No users nearby.");
+                    return;
+                }
+                for (JsonElement element : users) {
+                    JsonObject obj = element.getAsJsonObject();
+                    chatView.append(String.format("%s: %.2f km away", obj.get("userName").getAsString(),
+                            obj.get("distanceKm").getAsDouble()));
+                }
             } catch (Exception e) {
-                chatArea.append("Failed to parse user coordinates.\n");
+                chatView.append("Failed to parse nearby users.");
             }
         }
     }
@@ -1,92 +1,104 @@
 package org.zakaria;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Server class for the LAN Messenger.
  * Listens for incoming client connections and handles message broadcasting.
  */
 public class SwingServer {
-    private static final int PORT = 5000;
-    private static CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    private static final int PORT = Integer.getInteger("messenger.port", 5000);
+    private static final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    // Chat, notices and user lists only reach the sender's room
+    private static final Rooms rooms = new Rooms(true);
+    // Private messages go straight to the addressee
+    private static final DirectMessages directMessages = new DirectMessages();
+    // Room broadcasts for clients that opted in, when messenger.multicast.group is set
+    private static MulticastFanout multicast;
+    private static final ChatHistory history = new ChatHistory();
+    // Normalised name -> the history position when that user last disconnected, to replay what they missed
+    private static final ConcurrentHashMap<String, Long> lastSeen = new ConcurrentHashMap<>();
+    // Messages a bare /history sends, and the most any replay sends
+    private static final int DEFAULT_HISTORY = 20;
+    private static final int MAX_HISTORY = Integer.getInteger("messenger.history.maxReplay", 500);
 
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        try {
+            ChatTransport transport = ChatTransport.fromSystemProperties();
+            multicast = MulticastFanout.fromSystemProperties();
+            rooms.setMulticast(multicast);
+            // Shares rooms, chat and user lists with the other nodes when messenger.cluster.port is set
+            ClusterBridge cluster = ClusterBridge.fromSystemProperties(PORT, rooms, (room, message) -> {
+                if (Rooms.isDefault(room)) {
+                    history.append(message.getPayload());
+                }
+                rooms.deliver(room, message);
+            });
+            // Stop accepting and let every handler finish when the JVM is asked to exit
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (cluster != null) cluster.close();
+                transport.close();
+                if (multicast != null) multicast.close();
+                history.close();
+            }));
             System.out.println("Server is running on port " + PORT + " and waiting for connections...");
 
             // Continuously accept new client connections
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket);
+            transport.serve(PORT, connection -> {
+                System.out.println("New client connected: " + connection);
 
-                // Create and start a new ClientHandler thread for the connected client
-                ClientHandler client = new ClientHandler(clientSocket);
+                // Create a ClientHandler for the connected client
+                ClientHandler client = new ClientHandler(connection);
                 clients.add(client);
-                new Thread(client).start();
-            }
+                return client;
+            });
         } catch (IOException e) {
             System.err.println("Server exception: " + e.getMessage());
         }
     }
 
     /**
-     * Broadcasts a message to all connected clients except the sender.
+     * Broadcasts a message to the clients in the sender's room, except the sender.
      *
      * @param message The message to broadcast.
      * @param sender  The client sending the message.
      */
     public static void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            // Don't send the message back to the sender
-            if (client != sender) {
-                client.sendMessage(message);
-            }
+        Rooms.Room room = sender.room;
+        if (room == null) return;
+        // Only the default room is recorded; the history writer catches up in the background
+        if (room.isDefault()) {
+            history.append(message);
         }
+        // Encode once and hand the same bytes to every recipient
+        room.broadcast(Message.text(message), sender.connection);
     }
 
     /**
-     * Updates all clients with the current list of connected users.
+     * Sends the outbound queue statistics of every connected user to one client.
+     *
+     * @param requester The client asking for the statistics.
      */
-    public static void updateUserList() {
-        StringBuilder userList = new StringBuilder("USER_LIST:");
+    public static void sendQueueStats(ClientHandler requester) {
         for (ClientHandler client : clients) {
-            userList.append(client.getUserName()).append(",");
-        }
-        // Remove trailing comma if present
-        if (userList.length() > 10) {
-            userList.setLength(userList.length() - 1);
-        }
-        String userListMessage = userList.toString();
-        for (ClientHandler client : clients) {
-            client.sendMessage(userListMessage);
+            requester.sendMessage("QUEUE " + client.getUserName() + ": " + client.getQueueStats());
         }
     }
 
     /**
      * Inner class to handle each connected client.
      */
-    private static class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
+    private static class ClientHandler implements ConnectionHandler {
+        private final ClientConnection connection;
         private String userName;
+        // Set once the username is known
+        private Rooms.Room room;
 
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
-            try {
-                // Initialize input and output streams
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            } catch (IOException e) {
-                System.err.println("Error initializing client handler: " + e.getMessage());
-                closeEverything();
-            }
+        public ClientHandler(ClientConnection connection) {
+            this.connection = connection;
         }
 
         public String getUserName() {
@@ -94,47 +106,130 @@ public class SwingServer {
         }
 
         public void sendMessage(String message) {
-            out.println(message);
+            connection.send(message);
+        }
+
+        public void sendMessage(Message message) {
+            connection.send(message);
+        }
+
+        public QueueStats getQueueStats() {
+            return connection.getQueueStats();
         }
 
         @Override
-        public void run() {
-            try {
-                // First message from client is the username
-                userName = in.readLine();
+        public void onOpen() {
+        }
+
+        @Override
+        public void onLine(String message) {
+            if (userName == null && message.equals(MulticastFanout.OFFER)) {
+                // Opting in to multicast comes before the username
+                if (multicast != null) {
+                    multicast.subscribe(connection);
+                } else {
+                    sendMessage("Multicast delivery is not enabled on this server.");
+                }
+                return;
+            }
+            if (userName == null) {
+                // First message from client is the username; a name others cannot address is asked again
+                if (!UserRegistry.isValidName(message)) {
+                    sendMessage("User names cannot contain spaces, commas or colons; send another one.");
+                    return;
+                }
+                userName = message;
                 System.out.println("User connected: " + userName);
-                out.println("Welcome to the chat room, " + userName + "!");
+                sendMessage("Welcome to the chat room, " + userName + "!");
+                // Sends this client the room's user list, everyone else in it a delta
+                room = rooms.enter(Rooms.DEFAULT_ROOM, connection, userName);
+                directMessages.register(userName, connection);
+                // What was said before this join, not the join itself
+                long joined = history.position();
                 broadcast(userName + " has joined the chat.", this);
-                updateUserList();
-
-                String message;
-                // Continuously listen for messages from the client
-                while ((message = in.readLine()) != null) {
-                    System.out.println("[" + userName + "]: " + message);
-                    broadcast("[" + userName + "]: " + message, this);
+                // A returning user gets what was said while they were away
+                Long left = lastSeen.remove(UserRegistry.key(userName));
+                if (left != null) {
+                    List<String> missed = history.between(left, joined, MAX_HISTORY);
+                    if (!missed.isEmpty()) {
+                        replay(missed, "Messages since you left:");
+                    }
+                }
+                return;
+            }
+            if (message.equals("/queues")) {
+                sendQueueStats(this);
+                return;
+            }
+            if (message.equals("/users")) {
+                room.getPresence().resync(connection);
+                return;
+            }
+            if (Opcode.DIRECT_MESSAGE.matches(message)) {
+                directMessages.send(connection, userName, message.substring(Opcode.DIRECT_MESSAGE.getTextPrefix().length()));
+                return;
+            }
+            if (message.startsWith(Opcode.MULTICAST_NACK.getTextPrefix())) {
+                if (multicast != null) {
+                    multicast.resend(room, connection, message.substring(Opcode.MULTICAST_NACK.getTextPrefix().length()));
                 }
-            } catch (IOException e) {
-                System.err.println("Error in client communication: " + e.getMessage());
-            } finally {
-                // Client has disconnected
-                System.out.println("User disconnected: " + userName);
-                clients.remove(this);
-                broadcast(userName + " has left the chat.", this);
-                updateUserList();
-                closeEverything();
+                return;
+            }
+            if (Opcode.JOIN_ROOM.matches(message)) {
+                room = rooms.join(room, message.substring(Opcode.JOIN_ROOM.getTextPrefix().length()), connection, userName);
+                return;
+            }
+            if (Opcode.LEAVE_ROOM.matches(message)) {
+                room = rooms.leave(room, message.substring(Opcode.LEAVE_ROOM.getTextPrefix().length()), connection, userName);
+                return;
+            }
+            if (message.equals(Opcode.STATS.getTextPrefix())) {
+                Metrics.report().forEach(this::sendMessage);
+                return;
+            }
+            if (Opcode.HISTORY.matches(message)) {
+                sendHistory(message.substring(Opcode.HISTORY.getTextPrefix().length()).trim());
+                return;
+            }
+            System.out.println("[" + userName + "]: " + message);
+            broadcast("[" + userName + "]: " + message, this);
+        }
+
+        @Override
+        public void onClose() {
+            // Client has disconnected
+            System.out.println("User disconnected: " + userName);
+            clients.remove(this);
+            broadcast(userName + " has left the chat.", this);
+            rooms.exit(room, connection);
+            if (multicast != null) {
+                multicast.unsubscribe(connection);
+            }
+            if (userName != null) {
+                directMessages.unregister(userName, connection);
+                lastSeen.put(UserRegistry.key(userName), history.position());
             }
         }
 
-        /**
-         * Closes all resources associated with the client.
-         */
-        private void closeEverything() {
+        private void sendHistory(String count) {
+            int n;
             try {
-                if (out != null) out.close();
-                if (in != null) in.close();
-                if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing resources for " + userName + ": " + e.getMessage());
+                n = count.isEmpty() ? DEFAULT_HISTORY : Integer.parseInt(count);
+            } catch (NumberFormatException e) {
+                sendMessage("Usage: /history <number of messages>");
+                return;
+            }
+            replay(history.latest(Math.min(n, MAX_HISTORY)), "Recent messages:");
+        }
+
+        private void replay(List<String> messages, String heading) {
+            if (messages.isEmpty()) {
+                sendMessage("No messages to show.");
+                return;
+            }
+            sendMessage(heading);
+            for (String message : messages) {
+                sendMessage(message);
             }
         }
     }
@@ -3,17 +3,17 @@ package org.zakaria;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 
-import java.io.BufferedReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Server class for the LAN Messenger.
@@ -21,72 +21,129 @@ import java.util.ArrayList;
  */
 public class SwingServerCoordinates {
     private static final int PORT = 5000;
-    private static CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
-    private static List<User> users = new ArrayList<>();
+    private static final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    // Chat, notices and user lists only reach the sender's room
+    private static final Rooms rooms = new Rooms(true);
+    // Private messages go straight to the addressee
+    private static final DirectMessages directMessages = new DirectMessages();
+    // Room broadcasts for clients that opted in, when messenger.multicast.group is set
+    private static MulticastFanout multicast;
+    private static final UserRegistry users = new UserRegistry();
+    private static final GeoIndex positions = new GeoIndex();
+    private static final UserStore store = new UserStore();
+    private static final ChatHistory history = new ChatHistory();
+    // Normalised name -> the history position when that user last disconnected, to replay what they missed
+    private static final ConcurrentHashMap<String, Long> lastSeen = new ConcurrentHashMap<>();
+    // Messages a bare /history sends, and the most any replay sends
+    private static final int DEFAULT_HISTORY = 20;
+    private static final int MAX_HISTORY = Integer.getInteger("messenger.history.maxReplay", 500);
+    // Users remembered from earlier sessions that nobody is connected as; each is also in the registry
+    private static final ConcurrentHashMap<String, User> offline = new ConcurrentHashMap<>();
+    // Most users a /near or /nearest answer lists
+    private static final int MAX_NEARBY_RESULTS = Integer.getInteger("messenger.geo.maxResults", 100);
     private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    // Single-line JSON, so a payload stays one line in the text protocol
+    private static final Gson compactGson = new Gson();
 
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        try {
+            ChatTransport transport = ChatTransport.fromSystemProperties();
+            multicast = MulticastFanout.fromSystemProperties();
+            rooms.setMulticast(multicast);
+            // Stop accepting and let every handler finish when the JVM is asked to exit
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                transport.close();
+                if (multicast != null) multicast.close();
+                // Disconnects are journaled by now; write them into a final snapshot
+                store.close();
+                history.close();
+            }));
+            // Restore remembered users in the background; clients may connect meanwhile
+            store.open(SwingServerCoordinates::remember);
             System.out.println("Server is running on port " + PORT + " and waiting for connections...");
 
             // Continuously accept new client connections
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket);
+            transport.serve(PORT, connection -> {
+                System.out.println("New client connected: " + connection);
 
-                // Create and start a new ClientHandler thread for the connected client
-                ClientHandler client = new ClientHandler(clientSocket);
+                // Create a ClientHandler for the connected client
+                ClientHandler client = new ClientHandler(connection);
                 clients.add(client);
-                new Thread(client).start();
-            }
+                return client;
+            });
         } catch (IOException e) {
             System.err.println("Server exception: " + e.getMessage());
         }
     }
 
     /**
-     * Broadcasts a message to all connected clients except the sender.
+     * Broadcasts a message to the clients in the sender's room, except the sender.
      *
      * @param message The message to broadcast.
      * @param sender  The client sending the message.
      */
     public static void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            // Don't send the message back to the sender
-            if (client != sender) {
-                client.sendMessage(message);
-            }
+        Rooms.Room room = sender.room;
+        if (room == null) return;
+        // Only the default room is recorded; the history writer catches up in the background
+        if (room.isDefault()) {
+            history.append(message);
         }
+        // Encode once and hand the same bytes to every recipient
+        room.broadcast(Message.text(message), sender.connection);
     }
 
     /**
-     * Updates all clients with the current list of connected users.
+     * Requests a checkpoint of all user data to users.json, without waiting for it.
+     *
+     * @return Completes once the data is on disk.
      */
-    public static void updateUserList() {
-        StringBuilder userList = new StringBuilder("USER_LIST:");
-        for (ClientHandler client : clients) {
-            userList.append(client.getUserName()).append(",");
-        }
-        // Remove trailing comma if present
-        if (userList.length() > 10) {
-            userList.setLength(userList.length() - 1);
-        }
-        String userListMessage = userList.toString();
-        for (ClientHandler client : clients) {
-            client.sendMessage(userListMessage);
-        }
+    public static CompletableFuture<Void> saveUsersToJSON() {
+        return store.checkpoint();
     }
 
     /**
-     * Saves all user data to a JSON file.
+     * Registers a user who just joined, replacing any remembered entry of the same name.
+     *
+     * @param user The user.
      */
-    public static void saveUsersToJSON() {
-        try (FileWriter writer = new FileWriter("users.json")) {
-            gson.toJson(users, writer);
-            System.out.println("User data saved to users.json");
-        } catch (IOException e) {
-            System.err.println("Error saving users to JSON: " + e.getMessage());
+    private static void register(User user) {
+        // All registry changes for one name run inside offline.compute, so they never interleave
+        offline.compute(UserRegistry.key(user.getUserName()), (key, remembered) -> {
+            if (remembered != null) users.remove(remembered);
+            users.add(user);
+            return null;
+        });
+    }
+
+    /**
+     * Unregisters a user who left. Once nobody else is connected under the name, the user
+     * stays in the registry at their last position.
+     *
+     * @param user The user.
+     */
+    private static void unregister(User user) {
+        offline.compute(UserRegistry.key(user.getUserName()), (key, remembered) -> {
+            users.remove(user);
+            return rememberIfAbsent(user, remembered);
+        });
+    }
+
+    /**
+     * Adds a restored user to the registry, unless someone is registered under the name already.
+     *
+     * @param user The user.
+     */
+    private static void remember(User user) {
+        offline.compute(UserRegistry.key(user.getUserName()), (key, remembered) -> rememberIfAbsent(user, remembered));
+    }
+
+    private static User rememberIfAbsent(User user, User remembered) {
+        if (remembered != null || users.get(user.getUserName()) != null) {
+            return remembered;
         }
+        users.add(user);
+        return user;
     }
 
     /**
@@ -96,37 +153,67 @@ public class SwingServerCoordinates {
      * @return The User object if found; otherwise, null.
      */
     public static User getUserByName(String userName) {
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getUserName().equalsIgnoreCase(userName)) {
-                    return user;
-                }
-            }
+        return users.get(userName);
+    }
+
+    /**
+     * Sends the outbound queue statistics of every connected user to one client.
+     *
+     * @param requester The client asking for the statistics.
+     */
+    public static void sendQueueStats(ClientHandler requester) {
+        for (ClientHandler client : clients) {
+            requester.sendMessage("QUEUE " + client.getUserName() + ": " + client.getQueueStats());
         }
-        return null;
     }
 
     /**
      * Inner class to handle each connected client.
+     * The handshake (protocol, multicast, username, latitude, longitude) is driven one received message at a time;
+     * after it, messages are dispatched by opcode through {@link #COMMANDS}.
      */
-    private static class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
+    private static class ClientHandler implements ConnectionHandler {
+        // Prefixed opcodes a legacy text client may send, in matching order
+        private static final Opcode[] TEXT_COMMANDS = {Opcode.SAVE, Opcode.QUEUES, Opcode.SYNC_USERS, Opcode.GET_COORDINATES,
+                Opcode.FIND_NEAR, Opcode.FIND_NEAREST, Opcode.HISTORY, Opcode.STATS, Opcode.JOIN_ROOM, Opcode.LEAVE_ROOM,
+                Opcode.DIRECT_MESSAGE, Opcode.MULTICAST_NACK};
+        private static final Map<Opcode, BiConsumer<ClientHandler, Message>> COMMANDS = new EnumMap<>(Opcode.class);
+
+        static {
+            COMMANDS.put(Opcode.TEXT, ClientHandler::chat);
+            COMMANDS.put(Opcode.SAVE, ClientHandler::save);
+            COMMANDS.put(Opcode.QUEUES, ClientHandler::queues);
+            COMMANDS.put(Opcode.GET_COORDINATES, ClientHandler::getCoordinates);
+            COMMANDS.put(Opcode.FIND_NEAR, ClientHandler::findNear);
+            COMMANDS.put(Opcode.FIND_NEAREST, ClientHandler::findNearest);
+            COMMANDS.put(Opcode.HISTORY, ClientHandler::history);
+            COMMANDS.put(Opcode.STATS, (client, message) -> Metrics.report().forEach(client::sendMessage));
+            COMMANDS.put(Opcode.SYNC_USERS, (client, message) -> client.room.getPresence().resync(client.connection));
+            COMMANDS.put(Opcode.JOIN_ROOM, (client, message) ->
+                    client.room = rooms.join(client.room, message.getPayload(), client.connection, client.userName));
+            COMMANDS.put(Opcode.LEAVE_ROOM, (client, message) ->
+                    client.room = rooms.leave(client.room, message.getPayload(), client.connection, client.userName));
+            COMMANDS.put(Opcode.DIRECT_MESSAGE, (client, message) ->
+                    directMessages.send(client.connection, client.userName, message.getPayload()));
+            COMMANDS.put(Opcode.MULTICAST_NACK, (client, message) -> {
+                if (multicast != null) multicast.resend(client.room, client.connection, message.getPayload());
+            });
+        }
+
+        private final ClientConnection connection;
+        private Stage stage = Stage.USERNAME;
+        private boolean negotiated;
         private String userName;
+        private String latStr;
         private double latitude;
         private double longitude;
+        // This connection's entry in the user registry, once it has joined
+        private User user;
+        // The room this connection is in, once it has joined
+        private Rooms.Room room;
 
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
-            try {
-                // Initialize input and output streams
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            } catch (IOException e) {
-                System.err.println("Error initializing client handler: " + e.getMessage());
-                closeEverything();
-            }
+        public ClientHandler(ClientConnection connection) {
+            this.connection = connection;
         }
 
         public String getUserName() {
@@ -134,94 +221,262 @@ public class SwingServerCoordinates {
         }
 
         public void sendMessage(String message) {
-            out.println(message);
+            connection.send(message);
+        }
+
+        public void sendMessage(Message message) {
+            connection.send(message);
+        }
+
+        public QueueStats getQueueStats() {
+            return connection.getQueueStats();
         }
 
         @Override
-        public void run() {
-            try {
-                // Prompt for username
-                out.println("Enter your username:");
-                userName = in.readLine();
-                if (userName == null || userName.trim().isEmpty()) {
-                    userName = "Anonymous";
-                }
-                System.out.println("User connected: " + userName);
-                out.println("Welcome to the chat room, " + userName + "!");
-
-                // Prompt for latitude
-                out.println("Enter your latitude:");
-                String latStr = in.readLine();
-                // Prompt for longitude
-                out.println("Enter your longitude:");
-                String lonStr = in.readLine();
-
-                try {
-                    latitude = Double.parseDouble(latStr);
-                    longitude = Double.parseDouble(lonStr);
-                } catch (NumberFormatException e) {
-                    out.println("Invalid coordinates. Connection will be closed.");
-                    closeEverything();
-                    return;
-                }
+        public void onOpen() {
+            // Prompt for username
+            sendMessage(Message.of(Opcode.PROMPT, "Enter your username:"));
+        }
 
-                // Add user to the list
-                User user = new User(userName, latitude, longitude);
-                synchronized (users) {
-                    users.add(user);
-                }
+        @Override
+        public void onLine(String line) {
+            if (stage == Stage.CHAT) {
+                dispatch(Opcode.parseLine(line, TEXT_COMMANDS));
+            } else if (stage == Stage.USERNAME && !negotiated && line.startsWith("PROTOCOL:")) {
+                negotiate(line);
+            } else {
+                handshake(line);
+            }
+        }
 
-                // Notify all clients about the new user
-                broadcast(userName + " has joined the chat.", this);
-                updateUserList();
-
-                String message;
-                // Continuously listen for messages from the client
-                while ((message = in.readLine()) != null) {
-                    if (message.startsWith("/save")) {
-                        saveUsersToJSON();
-                        out.println("User data has been saved.");
-                    } else if (message.startsWith("/get ")) {
-                        String targetUser = message.substring(5).trim();
-                        User target = getUserByName(targetUser);
-                        if (target != null) {
-                            String json = gson.toJson(target);
-                            out.println("USER_COORDINATES:" + json);
+        @Override
+        public void onFrame(Message message) {
+            if (stage == Stage.CHAT) {
+                dispatch(message);
+            } else {
+                handshake(message.getPayload());
+            }
+        }
+
+        /**
+         * Answers a client's protocol offer, which is only accepted as its very first line.
+         */
+        private void negotiate(String offer) {
+            negotiated = true;
+            if (offer.equals(WireProtocol.BINARY_OFFER)) {
+                // Acknowledge in text, then switch both directions
+                sendMessage(WireProtocol.BINARY_OFFER);
+                connection.setProtocol(WireProtocol.BINARY);
+            } else {
+                sendMessage(WireProtocol.TEXT_ANSWER);
+            }
+            // Repeat the prompt in the agreed protocol
+            onOpen();
+        }
+
+        private void handshake(String answer) {
+            switch (stage) {
+                case USERNAME:
+                    negotiated = true;
+                    if (answer.equals(MulticastFanout.OFFER)) {
+                        // Opting in to multicast comes after the protocol and before the username
+                        if (multicast != null) {
+                            multicast.subscribe(connection);
                         } else {
-                            out.println("User not found.");
+                            sendMessage("Multicast delivery is not enabled on this server.");
                         }
-                    } else {
-                        System.out.println("[" + userName + "]: " + message);
-                        // Broadcast the message to other clients
-                        broadcast("[" + userName + "]: " + message, this);
+                        break;
                     }
+                    userName = answer;
+                    if (userName.trim().isEmpty()) {
+                        userName = "Anonymous";
+                    }
+                    if (!UserRegistry.isValidName(userName)) {
+                        userName = null;
+                        sendMessage("User names cannot contain spaces, commas or colons.");
+                        onOpen();
+                        break;
+                    }
+                    System.out.println("User connected: " + userName);
+                    sendMessage("Welcome to the chat room, " + userName + "!");
+
+                    // Prompt for latitude
+                    sendMessage(Message.of(Opcode.PROMPT, "Enter your latitude:"));
+                    stage = Stage.LATITUDE;
+                    break;
+                case LATITUDE:
+                    latStr = answer;
+                    // Prompt for longitude
+                    sendMessage(Message.of(Opcode.PROMPT, "Enter your longitude:"));
+                    stage = Stage.LONGITUDE;
+                    break;
+                case LONGITUDE:
+                    joinWithCoordinates(latStr, answer);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void joinWithCoordinates(String latStr, String lonStr) {
+            try {
+                latitude = Double.parseDouble(latStr);
+                longitude = Double.parseDouble(lonStr);
+            } catch (NumberFormatException e) {
+                sendMessage("Invalid coordinates. Connection will be closed.");
+                stage = Stage.CLOSED;
+                connection.close();
+                return;
+            }
+
+            // Add user to the list
+            user = new User(userName, latitude, longitude);
+            register(user);
+            positions.add(user);
+            store.joined(user);
+            stage = Stage.CHAT;
+
+            // Sends this client the room's user list, everyone else in it a delta
+            room = rooms.enter(Rooms.DEFAULT_ROOM, connection, userName);
+            directMessages.register(userName, connection);
+            // What was said before this join, not the join itself
+            long joined = history.position();
+            // Notify the room about the new user
+            broadcast(userName + " has joined the chat.", this);
+
+            // A returning user gets what was said while they were away
+            Long left = lastSeen.remove(UserRegistry.key(userName));
+            if (left != null) {
+                List<String> missed = history.between(left, joined, MAX_HISTORY);
+                if (!missed.isEmpty()) {
+                    replay(missed, "Messages since you left:");
                 }
-            } catch (IOException e) {
-                System.err.println("Error in client communication: " + e.getMessage());
-            } finally {
-                // Client has disconnected
-                System.out.println("User disconnected: " + userName);
-                clients.remove(this);
-                synchronized (users) {
-                    users.removeIf(u -> u.getUserName().equalsIgnoreCase(userName));
-                }
-                broadcast(userName + " has left the chat.", this);
-                updateUserList();
-                closeEverything();
             }
         }
 
-        /**
-         * Closes all resources associated with the client.
-         */
-        private void closeEverything() {
+        private void dispatch(Message message) {
+            BiConsumer<ClientHandler, Message> command = COMMANDS.get(message.getOpcode());
+            if (command != null) {
+                command.accept(this, message);
+            } else {
+                sendMessage("Unsupported request: " + message.getOpcode());
+            }
+        }
+
+        private void chat(Message message) {
+            if (Opcode.DIRECT_MESSAGE.matches(message.getPayload())) {
+                // A private message typed as chat by a client that did not recognise it; never broadcast it
+                directMessages.send(connection, userName, message.getPayload().substring(Opcode.DIRECT_MESSAGE.getTextPrefix().length()));
+                return;
+            }
+            System.out.println("[" + userName + "]: " + message.getPayload());
+            // Broadcast the message to other clients
+            broadcast("[" + userName + "]: " + message.getPayload(), this);
+        }
+
+        private void save(Message message) {
+            // Answer once the checkpoint is written; chat carries on meanwhile
+            saveUsersToJSON().whenComplete((done, failure) ->
+                    sendMessage(failure == null ? "User data has been saved." : "Error saving user data."));
+        }
+
+        private void queues(Message message) {
+            sendQueueStats(this);
+        }
+
+        private void getCoordinates(Message message) {
+            String targetUser = message.getPayload().trim();
+            User target = getUserByName(targetUser);
+            if (target != null) {
+                String json = gson.toJson(target);
+                sendMessage(Message.of(Opcode.USER_COORDINATES, json));
+            } else {
+                sendMessage("User not found.");
+            }
+        }
+
+        private void findNear(Message message) {
+            double radiusKm;
+            try {
+                radiusKm = Double.parseDouble(message.getPayload().trim());
+            } catch (NumberFormatException e) {
+                sendMessage("Usage: /near <radius in km>");
+                return;
+            }
+            sendNearby(positions.within(latitude, longitude, radiusKm, MAX_NEARBY_RESULTS, user));
+        }
+
+        private void findNearest(Message message) {
+            int k;
+            try {
+                k = Integer.parseInt(message.getPayload().trim());
+            } catch (NumberFormatException e) {
+                sendMessage("Usage: /nearest <number of users>");
+                return;
+            }
+            sendNearby(positions.nearest(latitude, longitude, Math.min(k, MAX_NEARBY_RESULTS), user));
+        }
+
+        private void history(Message message) {
+            String count = message.getPayload().trim();
+            int n;
             try {
-                if (out != null) out.close();
-                if (in != null) in.close();
-                if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing resources for " + userName + ": " + e.getMessage());
+                n = count.isEmpty() ? DEFAULT_HISTORY : Integer.parseInt(count);
+            } catch (NumberFormatException e) {
+                sendMessage("Usage: /history <number of messages>");
+                return;
+            }
+            replay(history.latest(Math.min(n, MAX_HISTORY)), "Recent messages:");
+        }
+
+        private void replay(List<String> messages, String heading) {
+            if (messages.isEmpty()) {
+                sendMessage("No messages to show.");
+                return;
+            }
+            sendMessage(heading);
+            for (String message : messages) {
+                sendMessage(message);
             }
         }
+
+        private void sendNearby(List<GeoIndex.Neighbor> neighbors) {
+            JsonArray json = new JsonArray();
+            for (GeoIndex.Neighbor neighbor : neighbors) {
+                JsonObject entry = compactGson.toJsonTree(neighbor.user()).getAsJsonObject();
+                entry.addProperty("distanceKm", neighbor.distanceKm());
+                json.add(entry);
+            }
+            sendMessage(Message.of(Opcode.NEARBY_USERS, compactGson.toJson(json)));
+        }
+
+        @Override
+        public void onClose() {
+            // Client has disconnected
+            System.out.println("User disconnected: " + userName);
+            clients.remove(this);
+            if (user != null) {
+                // Only this connection's entry; others with the same name stay
+                unregister(user);
+                positions.remove(user);
+                store.left(user);
+            }
+            broadcast(userName + " has left the chat.", this);
+            rooms.exit(room, connection);
+            if (multicast != null) {
+                multicast.unsubscribe(connection);
+            }
+            if (user != null) {
+                directMessages.unregister(userName, connection);
+                lastSeen.put(UserRegistry.key(userName), history.position());
+            }
+        }
+    }
+
+    /**
+     * Handshake progress of a client connection.
+     */
+    private enum Stage {
+        USERNAME, LATITUDE, LONGITUDE, CHAT, CLOSED
     }
 }
@@ -0,0 +1,46 @@
+package org.zakaria;
+
+/**
+ * How a server accepts and services its client connections.
+ * Selected with the {@code messenger.transport} system property, e.g.
+ * {@code -Dmessenger.transport=nio}.
+ */
+public enum TransportMode {
+    /**
+     * Classic blocking sockets with one platform thread per connection.
+     */
+    THREAD_PER_CONNECTION,
+
+    /**
+     * Blocking sockets with one virtual thread per connection, keeping the simple
+     * blocking handler style while letting the JVM park idle readers cheaply.
+     */
+    VIRTUAL_THREADS,
+
+    /**
+     * Non-blocking channels multiplexed over a small fixed set of selector threads.
+     * The number of event loops is set with {@code messenger.nio.threads}.
+     */
+    NIO;
+
+    /**
+     * Reads the transport mode from the {@code messenger.transport} system property.
+     *
+     * @return The configured mode, {@link #THREAD_PER_CONNECTION} if unset.
+     */
+    public static TransportMode fromSystemProperties() {
+        String value = System.getProperty("messenger.transport", "thread").trim().toLowerCase();
+        switch (value) {
+            case "nio":
+                return NIO;
+            case "virtual":
+            case "virtual_threads":
+                return VIRTUAL_THREADS;
+            case "thread":
+            case "thread_per_connection":
+                return THREAD_PER_CONNECTION;
+            default:
+                throw new IllegalArgumentException("Unknown transport mode: " + value);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.zakaria;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Socket and write-path tuning shared by every transport, read once from system properties:
+ * <ul>
+ *     <li>{@code messenger.tcp.nodelay} - disable Nagle's algorithm (default {@code true}; writes are
+ *     already coalesced by the transport, so the kernel should not delay them further)</li>
+ *     <li>{@code messenger.socket.sendBuffer} / {@code messenger.socket.receiveBuffer} - socket buffer
+ *     sizes in bytes (default: left to the OS)</li>
+ *     <li>{@code messenger.write.batchBytes} - the most bytes coalesced into a single write (default 32 KiB)</li>
+ *     <li>{@code messenger.write.lingerMicros} - how long a writer in the middle of a burst waits for
+ *     more messages before writing a partial batch (default 200 µs, 0 disables)</li>
+ * </ul>
+ */
+final class TransportSettings {
+    static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("messenger.tcp.nodelay", "true"));
+    static final int SEND_BUFFER_SIZE = Integer.getInteger("messenger.socket.sendBuffer", 0);
+    static final int RECEIVE_BUFFER_SIZE = Integer.getInteger("messenger.socket.receiveBuffer", 0);
+    static final int WRITE_BATCH_BYTES = Math.max(1, Integer.getInteger("messenger.write.batchBytes", 32 * 1024));
+    static final long WRITE_LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("messenger.write.lingerMicros", 200));
+
+    private TransportSettings() {
+    }
+
+    static void apply(Socket socket) throws IOException {
+        socket.setTcpNoDelay(TCP_NO_DELAY);
+        if (SEND_BUFFER_SIZE > 0) socket.setSendBufferSize(SEND_BUFFER_SIZE);
+        if (RECEIVE_BUFFER_SIZE > 0) socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+    }
+
+    static void apply(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, TCP_NO_DELAY);
+        if (SEND_BUFFER_SIZE > 0) channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+        if (RECEIVE_BUFFER_SIZE > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+    }
+}
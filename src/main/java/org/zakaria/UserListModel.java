@@ -0,0 +1,195 @@
+package org.zakaria;
+
+import javax.swing.AbstractListModel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The user list of the Swing clients: every connected name once, sorted without regard to case,
+ * optionally narrowed down to the names containing a filter text.
+ * <p>
+ * Names are kept in a sorted array together with how many connections use each, so a name stays
+ * listed until its last connection leaves. Every update, whether a full list, a batch of joins and
+ * leaves or a new filter, is applied by building the new array and comparing it with the old one:
+ * listeners get a single event covering only the rows between the unchanged head and tail.
+ * Narrowing the filter only searches the names currently shown.
+ * All methods must be called on the Event Dispatch Thread.
+ */
+class UserListModel extends AbstractListModel<String> {
+    static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+    private static final String[] NONE = new String[0];
+
+    // Every name, sorted and distinct, with its number of connections and lower-cased form
+    private String[] names = NONE;
+    private int[] counts = new int[0];
+    private String[] keys = NONE;
+    // The names shown: names itself when there is no filter
+    private String[] visible = NONE;
+    private String filter = "";
+
+    @Override
+    public int getSize() {
+        return visible.length;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return visible[index];
+    }
+
+    /**
+     * Replaces the list.
+     *
+     * @param users The users, one entry per connection, in any order.
+     */
+    void setAll(Collection<String> users) {
+        String[] sorted = users.toArray(NONE);
+        Arrays.sort(sorted, ORDER);
+        // Sorting brings the connections of one name together
+        String[] newNames = new String[sorted.length];
+        int[] newCounts = new int[sorted.length];
+        int size = 0;
+        for (String user : sorted) {
+            if (size > 0 && newNames[size - 1].equals(user)) {
+                newCounts[size - 1]++;
+            } else {
+                newNames[size] = user;
+                newCounts[size++] = 1;
+            }
+        }
+        newNames = Arrays.copyOf(newNames, size);
+        update(newNames, Arrays.copyOf(newCounts, size), reuseKeys(newNames));
+    }
+
+    /**
+     * Applies a batch of joins and leaves.
+     *
+     * @param changes Name -> connections joined minus connections left.
+     */
+    void apply(Map<String, Integer> changes) {
+        if (changes.isEmpty()) return;
+        Map<String, Integer> sorted = new TreeMap<>(ORDER);
+        sorted.putAll(changes);
+        String[] newNames = new String[names.length + sorted.size()];
+        int[] newCounts = new int[newNames.length];
+        String[] newKeys = new String[newNames.length];
+        int size = 0;
+        int i = 0;
+        // Merge the sorted changes into the sorted names
+        for (Map.Entry<String, Integer> change : sorted.entrySet()) {
+            while (i < names.length && ORDER.compare(names[i], change.getKey()) < 0) {
+                newNames[size] = names[i];
+                newCounts[size] = counts[i];
+                newKeys[size++] = keys[i++];
+            }
+            boolean known = i < names.length && names[i].equals(change.getKey());
+            int count = (known ? counts[i] : 0) + change.getValue();
+            if (count > 0) {
+                newNames[size] = change.getKey();
+                newCounts[size] = count;
+                newKeys[size++] = known ? keys[i] : key(change.getKey());
+            }
+            if (known) i++;
+        }
+        int rest = names.length - i;
+        System.arraycopy(names, i, newNames, size, rest);
+        System.arraycopy(counts, i, newCounts, size, rest);
+        System.arraycopy(keys, i, newKeys, size, rest);
+        size += rest;
+        if (size < newNames.length) {
+            newNames = Arrays.copyOf(newNames, size);
+            newCounts = Arrays.copyOf(newCounts, size);
+            newKeys = Arrays.copyOf(newKeys, size);
+        }
+        update(newNames, newCounts, newKeys);
+    }
+
+    /**
+     * Shows only the names containing a text, ignoring case.
+     *
+     * @param text The text; empty shows every name.
+     */
+    void setFilter(String text) {
+        String newFilter = key(text.trim());
+        if (newFilter.equals(filter)) return;
+        // A longer filter only ever matches names the current one matches
+        String[] candidates = !filter.isEmpty() && newFilter.contains(filter) ? visible : names;
+        String[] candidateKeys = candidates == names ? keys : null;
+        filter = newFilter;
+        show(filter.isEmpty() ? names : select(candidates, candidateKeys));
+    }
+
+    private void update(String[] newNames, int[] newCounts, String[] newKeys) {
+        names = newNames;
+        counts = newCounts;
+        keys = newKeys;
+        show(filter.isEmpty() ? names : select(names, keys));
+    }
+
+    /**
+     * Picks the names matching the filter; keys may be null, then they are computed.
+     */
+    private String[] select(String[] candidates, String[] candidateKeys) {
+        String[] matches = new String[candidates.length];
+        int size = 0;
+        for (int i = 0; i < candidates.length; i++) {
+            String key = candidateKeys != null ? candidateKeys[i] : key(candidates[i]);
+            if (key.contains(filter)) {
+                matches[size++] = candidates[i];
+            }
+        }
+        return Arrays.copyOf(matches, size);
+    }
+
+    /**
+     * Swaps in the new visible names and fires one event for the rows that differ.
+     */
+    private void show(String[] next) {
+        String[] previous = visible;
+        visible = next;
+        int head = 0;
+        int limit = Math.min(previous.length, next.length);
+        while (head < limit && previous[head].equals(next[head])) {
+            head++;
+        }
+        if (head == previous.length && head == next.length) return;
+        int tail = 0;
+        while (tail < limit - head
+                && previous[previous.length - 1 - tail].equals(next[next.length - 1 - tail])) {
+            tail++;
+        }
+        int previousEnd = previous.length - tail;
+        int nextEnd = next.length - tail;
+        if (previousEnd == head) {
+            fireIntervalAdded(this, head, nextEnd - 1);
+        } else if (nextEnd == head) {
+            fireIntervalRemoved(this, head, previousEnd - 1);
+        } else {
+            fireContentsChanged(this, head, Math.max(previousEnd, nextEnd) - 1);
+        }
+    }
+
+    /**
+     * Lower-cased names from the previous list where the name is unchanged, so a full list that
+     * mostly repeats the last one costs no conversions.
+     */
+    private String[] reuseKeys(String[] newNames) {
+        String[] newKeys = new String[newNames.length];
+        int j = 0;
+        for (int i = 0; i < newNames.length; i++) {
+            while (j < names.length && ORDER.compare(names[j], newNames[i]) < 0) {
+                j++;
+            }
+            newKeys[i] = j < names.length && names[j].equals(newNames[i]) ? keys[j] : key(newNames[i]);
+        }
+        return newKeys;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,79 @@
+package org.zakaria;
+
+import javax.swing.BorderFactory;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.function.Consumer;
+
+/**
+ * The "Users" side panel of the Swing clients: a {@link UserListModel} in a list with fixed-size
+ * rows, so it never measures every name, under a search field that filters it as the user types.
+ */
+class UserListPanel extends JPanel {
+    private final UserListModel model = new UserListModel();
+    private final JList<String> list = new JList<>(model);
+    private final JTextField search = new JTextField();
+
+    /**
+     * @param width The preferred width of the panel.
+     */
+    UserListPanel(int width) {
+        super(new BorderLayout());
+        list.setPrototypeCellValue("MMMMMMMMMMMMMMMM");
+        search.setToolTipText("Find a user");
+        search.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                model.setFilter(search.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                model.setFilter(search.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        add(search, BorderLayout.NORTH);
+        add(new JScrollPane(list), BorderLayout.CENTER);
+        setPreferredSize(new Dimension(width, 0));
+        setBorder(BorderFactory.createTitledBorder("Users"));
+    }
+
+    UserListModel getModel() {
+        return model;
+    }
+
+    JList<String> getList() {
+        return list;
+    }
+
+    /**
+     * Calls a listener with the name of every user double-clicked in the list.
+     *
+     * @param listener The listener.
+     */
+    void addOpenListener(Consumer<String> listener) {
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() != 2) return;
+                int index = list.locationToIndex(e.getPoint());
+                // locationToIndex answers the nearest row even below the last one
+                if (index >= 0 && list.getCellBounds(index, index).contains(e.getPoint())) {
+                    listener.accept(model.getElementAt(index));
+                }
+            }
+        });
+    }
+}
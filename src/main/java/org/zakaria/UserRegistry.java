@@ -0,0 +1,108 @@
+package org.zakaria;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The connected users, indexed by name without regard to case.
+ * <p>
+ * Lookups are lock-free; adding and removing a user only locks the entry for its name.
+ * The same name may be connected more than once: every connection registers its own {@link User},
+ * {@link #get(String)} returns the most recent one, and removing a user leaves the other
+ * connections of that name registered.
+ */
+public class UserRegistry {
+    // Normalised name -> users of that name, oldest first; arrays are never modified once published
+    private final ConcurrentHashMap<String, User[]> users = new ConcurrentHashMap<>();
+
+    /**
+     * Normalises a name so that two names get the same key exactly when
+     * {@link String#equalsIgnoreCase(String)} considers them equal.
+     */
+    static String key(String userName) {
+        char[] chars = userName.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Whether a name can be used: other users address it in {@code /msg <user> <text>}, and user
+     * lists and private messages separate it from what follows with a comma or a colon.
+     *
+     * @param userName The name a client asked for.
+     * @return {@code true} if the name is not empty and has no whitespace, commas or colons.
+     */
+    static boolean isValidName(String userName) {
+        if (userName.isEmpty()) return false;
+        for (int i = 0; i < userName.length(); i++) {
+            char c = userName.charAt(i);
+            if (Character.isWhitespace(c) || c == ',' || c == ':') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Registers a user.
+     *
+     * @param user The user.
+     */
+    public void add(User user) {
+        users.merge(key(user.getUserName()), new User[]{user}, (registered, added) -> {
+            User[] merged = Arrays.copyOf(registered, registered.length + 1);
+            merged[registered.length] = user;
+            return merged;
+        });
+    }
+
+    /**
+     * Unregisters a user. Other users of the same name stay registered.
+     *
+     * @param user The user, as passed to {@link #add(User)}.
+     * @return {@code true} if the user was registered.
+     */
+    public boolean remove(User user) {
+        boolean[] removed = new boolean[1];
+        users.computeIfPresent(key(user.getUserName()), (key, registered) -> {
+            for (int i = 0; i < registered.length; i++) {
+                if (registered[i] == user) {
+                    removed[0] = true;
+                    if (registered.length == 1) {
+                        return null;
+                    }
+                    User[] remaining = new User[registered.length - 1];
+                    System.arraycopy(registered, 0, remaining, 0, i);
+                    System.arraycopy(registered, i + 1, remaining, i, remaining.length - i);
+                    return remaining;
+                }
+            }
+            return registered;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Looks up a user by name, ignoring case.
+     *
+     * @param userName The username to search for.
+     * @return The most recently registered user of that name; otherwise, null.
+     */
+    public User get(String userName) {
+        User[] registered = users.get(key(userName));
+        return registered == null ? null : registered[registered.length - 1];
+    }
+
+    /**
+     * @return Every registered user, in no particular order.
+     */
+    public List<User> snapshot() {
+        List<User> all = new ArrayList<>(users.size());
+        for (User[] registered : users.values()) {
+            all.addAll(Arrays.asList(registered));
+        }
+        return all;
+    }
+}
@@ -0,0 +1,212 @@
+package org.zakaria;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * The two on-disk snapshot formats of {@link UserStore}, both written and read one user at a time:
+ * <ul>
+ *     <li>{@code users.json}: {@code {"journalSequence": n, "users": [{"userName", "latitude", "longitude"}, ...]}}.
+ *     A bare array of users, as older servers wrote it, is read as sequence 0.</li>
+ *     <li>{@code users.snapshot}: the magic {@code USNP}, a format version, the sequence and the user count,
+ *     then per user the UTF-8 name prefixed with its length and the two coordinates as doubles.</li>
+ * </ul>
+ * Snapshots are written to a temporary file, forced to disk and atomically renamed over the old one.
+ * Selected with the {@code messenger.store.format} system property.
+ */
+enum UserSnapshot {
+    JSON("users.json") {
+        @Override
+        void write(FileChannel channel, long sequence, Collection<User> users) throws IOException {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8)));
+            writer.beginObject();
+            writer.name("journalSequence").value(sequence);
+            writer.name("users").beginArray();
+            for (User user : users) {
+                writer.beginObject();
+                writer.name("userName").value(user.getUserName());
+                writer.name("latitude").value(user.getLatitude());
+                writer.name("longitude").value(user.getLongitude());
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.flush();
+        }
+
+        @Override
+        long read(InputStream in, Consumer<User> into) throws IOException {
+            JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                readUsers(reader, into);
+                return 0;
+            }
+            long sequence = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "journalSequence":
+                        sequence = reader.nextLong();
+                        break;
+                    case "users":
+                        readUsers(reader, into);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return sequence;
+        }
+
+        private void readUsers(JsonReader reader, Consumer<User> into) throws IOException {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String userName = null;
+                double latitude = 0;
+                double longitude = 0;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "userName":
+                            userName = reader.nextString();
+                            break;
+                        case "latitude":
+                            latitude = reader.nextDouble();
+                            break;
+                        case "longitude":
+                            longitude = reader.nextDouble();
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (userName != null) {
+                    into.accept(new User(userName, latitude, longitude));
+                }
+            }
+            reader.endArray();
+        }
+    },
+
+    BINARY("users.snapshot") {
+        private static final int MAGIC = 0x55534E50;
+        private static final int VERSION = 1;
+
+        @Override
+        void write(FileChannel channel, long sequence, Collection<User> users) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sequence);
+            out.writeInt(users.size());
+            for (User user : users) {
+                byte[] name = user.getUserName().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeDouble(user.getLatitude());
+                out.writeDouble(user.getLongitude());
+            }
+            out.flush();
+        }
+
+        @Override
+        long read(InputStream in, Consumer<User> into) throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw new IOException("Not a user snapshot, or an unsupported version");
+            }
+            long sequence = data.readLong();
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[data.readInt()];
+                data.readFully(name);
+                into.accept(new User(new String(name, StandardCharsets.UTF_8), data.readDouble(), data.readDouble()));
+            }
+            return sequence;
+        }
+    };
+
+    private final String fileName;
+
+    UserSnapshot(String fileName) {
+        this.fileName = fileName;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Reads the format from the {@code messenger.store.format} system property.
+     *
+     * @return The configured format, {@link #JSON} if unset.
+     */
+    static UserSnapshot fromSystemProperties() {
+        String value = System.getProperty("messenger.store.format", "json").trim();
+        try {
+            return valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown user snapshot format: " + value);
+        }
+    }
+
+    abstract void write(FileChannel channel, long sequence, Collection<User> users) throws IOException;
+
+    abstract long read(InputStream in, Consumer<User> into) throws IOException;
+
+    /**
+     * Atomically replaces this format's snapshot in a directory.
+     *
+     * @param directory Where the snapshot lives.
+     * @param sequence  The last journal segment the snapshot includes.
+     * @param users     The users.
+     */
+    void save(Path directory, long sequence, Collection<User> users) throws IOException {
+        Path temporary = directory.resolve(fileName + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, sequence, users);
+            // The rename must not become visible before the data it points to
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(fileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Streams this format's snapshot from a directory, if there is one.
+     *
+     * @param directory Where the snapshot lives.
+     * @param into      Receives every user in the snapshot.
+     * @return The last journal segment the snapshot includes, or -1 if there is no snapshot.
+     */
+    long load(Path directory, Consumer<User> into) throws IOException {
+        Path file = directory.resolve(fileName);
+        if (!Files.exists(file)) {
+            return -1;
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            return read(in, into);
+        }
+    }
+}
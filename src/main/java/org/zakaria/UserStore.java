@@ -0,0 +1,314 @@
+package org.zakaria;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Persists every user the server has seen, with their last known coordinates.
+ * <p>
+ * Changes are appended to a journal as one JSON object per line: {@code join} for a new user,
+ * {@code move} when a known user joins again from elsewhere, and {@code leave} on disconnect
+ * (a user who left is still remembered at their last position). Journal files are numbered
+ * segments, {@code users.journal.<n>}. A checkpoint starts a new segment and writes everything
+ * known so far to {@code users.json}, via a temporary file and an atomic rename, as
+ * {@code {"journalSequence": n, "users": [...]}}; segments up to {@code n} are then deleted.
+ * So the state on disk is always the snapshot plus the segments after its sequence, and a crash
+ * at any point leaves both readable. With {@code messenger.store.format=binary} the snapshot is
+ * written to {@code users.snapshot} instead; see {@link UserSnapshot}.
+ * <p>
+ * {@link #open(Consumer)} restores that state by streaming the snapshot and replaying the newer
+ * segments, on the journal thread, so the server can accept connections meanwhile; changes
+ * recorded in the meantime queue up behind it.
+ * <p>
+ * Callers never wait for disk: changes and checkpoint requests are queued to a background
+ * thread, and snapshots are written by another. A checkpoint runs every
+ * {@code messenger.store.compactSeconds} (default 300) if anything changed, on
+ * {@link #checkpoint()}, and on {@link #close()}. Files live in {@code messenger.store.dir}
+ * (default: the working directory).
+ */
+public class UserStore {
+    static final String JOURNAL_PREFIX = "users.journal.";
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final Path directory;
+    private final UserSnapshot format;
+    private final Gson gson = new Gson();
+    // Appends to the journal and owns the in-memory state below
+    private final ScheduledExecutorService journalThread =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("user-journal").factory());
+    private final ExecutorService snapshotThread =
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("user-snapshot").factory());
+    // Normalised name -> last known user; only touched on the journal thread
+    private final Map<String, User> known = new LinkedHashMap<>();
+    private long sequence;
+    private Writer journal;
+    private int changesSinceCheckpoint;
+
+    public UserStore() {
+        this(Paths.get(System.getProperty("messenger.store.dir", ".")), UserSnapshot.fromSystemProperties(),
+                Long.getLong("messenger.store.compactSeconds", 300));
+    }
+
+    /**
+     * @param directory      Where the snapshot and journal live.
+     * @param format         The format new snapshots are written in.
+     * @param compactSeconds How often to checkpoint if anything changed; 0 only checkpoints on request.
+     */
+    UserStore(Path directory, UserSnapshot format, long compactSeconds) {
+        this.directory = directory;
+        this.format = format;
+        if (compactSeconds > 0) {
+            journalThread.scheduleWithFixedDelay(() -> {
+                if (changesSinceCheckpoint > 0) startCheckpoint(new CompletableFuture<>());
+            }, compactSeconds, compactSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Restores the users saved by earlier runs and starts journaling. Must be called once, before
+     * any change is recorded; the changes themselves may be recorded without waiting for it.
+     *
+     * @param restored Receives every restored user, on the journal thread, once loading is complete.
+     * @return Completes with the number of users restored.
+     */
+    public CompletableFuture<Integer> open(Consumer<User> restored) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            openJournal(recover());
+            known.values().forEach(restored);
+            System.out.println("Restored " + known.size() + " users in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            return known.size();
+        }, journalThread);
+    }
+
+    /**
+     * Records that a user joined at their current coordinates.
+     *
+     * @param user The user.
+     */
+    public void joined(User user) {
+        journalThread.execute(() -> {
+            User previous = known.put(UserRegistry.key(user.getUserName()), user);
+            boolean moved = previous != null && (previous.getLatitude() != user.getLatitude()
+                    || previous.getLongitude() != user.getLongitude());
+            append(moved ? "move" : "join", user);
+        });
+    }
+
+    /**
+     * Records that a user left. They are still remembered at their last position.
+     *
+     * @param user The user.
+     */
+    public void left(User user) {
+        journalThread.execute(() -> append("leave", user));
+    }
+
+    /**
+     * Requests a checkpoint: a fresh snapshot of everything recorded so far.
+     *
+     * @return Completes once the snapshot is on disk, or exceptionally if it could not be written.
+     */
+    public CompletableFuture<Void> checkpoint() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        journalThread.execute(() -> startCheckpoint(done));
+        return done;
+    }
+
+    /**
+     * Writes a final checkpoint and stops the background threads.
+     */
+    public void close() {
+        try {
+            checkpoint().get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.err.println("Error writing final user snapshot: " + e.getMessage());
+        }
+        journalThread.execute(this::closeJournal);
+        journalThread.shutdown();
+        snapshotThread.shutdown();
+    }
+
+    /**
+     * Loads the newest snapshot, then replays the journal segments written after it in order.
+     *
+     * @return The last segment the snapshot covers.
+     */
+    private long recover() {
+        Consumer<User> remember = user -> known.put(UserRegistry.key(user.getUserName()), user);
+        long covered = 0;
+        try {
+            Files.createDirectories(directory);
+            // Both formats only exist together if a run died between writing one and deleting the other
+            UserSnapshot newest = null;
+            for (UserSnapshot candidate : UserSnapshot.values()) {
+                Path file = directory.resolve(candidate.getFileName());
+                if (Files.exists(file) && (newest == null || Files.getLastModifiedTime(file).compareTo(
+                        Files.getLastModifiedTime(directory.resolve(newest.getFileName()))) > 0)) {
+                    newest = candidate;
+                }
+            }
+            if (newest != null) {
+                covered = newest.load(directory, remember);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error loading user snapshot: " + e.getMessage());
+        }
+        long after = covered;
+        try (Stream<Path> files = Files.list(directory)) {
+            long[] segments = files.mapToLong(UserStore::journalSequence).filter(n -> n > after).sorted().toArray();
+            for (long segment : segments) {
+                replay(journalPath(segment), remember);
+            }
+        } catch (IOException e) {
+            System.err.println("Error replaying user journal: " + e.getMessage());
+        }
+        return covered;
+    }
+
+    private void replay(Path segment, Consumer<User> remember) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JournalRecord record;
+                try {
+                    record = gson.fromJson(line, JournalRecord.class);
+                } catch (JsonParseException e) {
+                    // The tail of a segment the process died writing
+                    continue;
+                }
+                if (record != null && record.userName() != null && !"leave".equals(record.op())) {
+                    remember.accept(new User(record.userName(), record.latitude(), record.longitude()));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param covered The last segment the loaded snapshot covers; new segments must come after it,
+     *                or the next recovery would skip them.
+     */
+    private void openJournal(long covered) {
+        try {
+            Files.createDirectories(directory);
+            // Never append to a segment an earlier run may have left half-written
+            try (Stream<Path> files = Files.list(directory)) {
+                sequence = Math.max(covered, files.mapToLong(UserStore::journalSequence).max().orElse(0)) + 1;
+            }
+            journal = Files.newBufferedWriter(journalPath(sequence), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Error opening user journal: " + e.getMessage());
+        }
+    }
+
+    private void closeJournal() {
+        try {
+            if (journal != null) journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing user journal: " + e.getMessage());
+        }
+        journal = null;
+    }
+
+    private void append(String op, User user) {
+        changesSinceCheckpoint++;
+        if (journal == null) return;
+        try {
+            journal.write(gson.toJson(new JournalRecord(op, user.getUserName(), user.getLatitude(), user.getLongitude())));
+            journal.write('\n');
+            // Hand each change to the OS right away, so it survives the process dying
+            journal.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing user journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts a new journal segment and snapshots the state as of the end of the previous one.
+     * Runs on the journal thread; the snapshot itself is written on the snapshot thread.
+     */
+    private void startCheckpoint(CompletableFuture<Void> done) {
+        long covered = sequence;
+        closeJournal();
+        sequence++;
+        try {
+            journal = Files.newBufferedWriter(journalPath(sequence), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Error opening user journal: " + e.getMessage());
+        }
+        changesSinceCheckpoint = 0;
+        List<User> users = new ArrayList<>(known.values());
+        snapshotThread.execute(() -> {
+            try {
+                format.save(directory, covered, users);
+                System.out.println("User data saved to " + format.getFileName());
+                // Whatever the other format holds is older now
+                for (UserSnapshot other : UserSnapshot.values()) {
+                    if (other != format) Files.deleteIfExists(directory.resolve(other.getFileName()));
+                }
+                deleteJournalsUpTo(covered);
+                done.complete(null);
+            } catch (IOException e) {
+                System.err.println("Error saving users to JSON: " + e.getMessage());
+                done.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void deleteJournalsUpTo(long covered) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                long number = journalSequence(file);
+                if (number > 0 && number <= covered) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private Path journalPath(long number) {
+        return directory.resolve(JOURNAL_PREFIX + number);
+    }
+
+    /**
+     * @return The segment number of a journal file, or 0 if the file is not one.
+     */
+    static long journalSequence(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(JOURNAL_PREFIX)) return 0;
+        try {
+            return Long.parseLong(name.substring(JOURNAL_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * One line of the journal.
+     */
+    record JournalRecord(String op, String userName, double latitude, double longitude) {
+    }
+}
@@ -0,0 +1,39 @@
+package org.zakaria;
+
+/**
+ * The encodings a connection can speak. Connections start in {@link #TEXT}; a client may ask
+ * for {@link #BINARY} by sending {@link #BINARY_OFFER} as its very first line, which the server
+ * acknowledges by echoing the line before switching both directions.
+ */
+public enum WireProtocol {
+    /**
+     * Legacy newline-delimited UTF-8 lines, message types recognised by text prefixes.
+     */
+    TEXT,
+
+    /**
+     * Version 1 binary framing: a 4-byte big-endian length, then that many bytes made of a
+     * one-byte {@link Opcode} code followed by the UTF-8 payload. Payloads may contain any
+     * character, including line breaks, and frames can be pipelined freely.
+     */
+    BINARY;
+
+    /**
+     * First line a client sends to request {@link #BINARY}, and the server's acknowledgement.
+     */
+    public static final String BINARY_OFFER = "PROTOCOL:BINARY/1";
+
+    /**
+     * Server's answer when it declines a protocol offer; the connection stays in {@link #TEXT}.
+     */
+    public static final String TEXT_ANSWER = "PROTOCOL:TEXT";
+
+    /**
+     * Largest frame accepted, in bytes.
+     */
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    InboundDecoder newDecoder() {
+        return this == BINARY ? new FrameDecoder() : new LineDecoder();
+    }
+}